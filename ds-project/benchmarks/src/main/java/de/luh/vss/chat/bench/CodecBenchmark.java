@@ -0,0 +1,142 @@
+package de.luh.vss.chat.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.luh.vss.chat.common.Message;
+import de.luh.vss.chat.common.MessageCodec;
+import de.luh.vss.chat.common.MessageType;
+import de.luh.vss.chat.common.User.UserId;
+
+/**
+ * Cost of encoding and decoding one message of a {@link MessageType} in memory:
+ * {@code toStream} and {@link Message#parse} (stream format), {@link MessageCodec} frames, and
+ * {@link Message.ChatMessage#serializeMessage()} for UDP.
+ *
+ * Usage: {@code java -jar benchmarks/target/benchmarks.jar CodecBenchmark [-p type=CHAT_MESSAGE] [-p chatLength=1024]}
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+	@Param({ "ERROR_RESPONSE", "REGISTER_REQUEST", "REGISTER_RESPONSE", "CHAT_MESSAGE", "CAPABILITIES",
+			"WINDOW_UPDATE" })
+	public MessageType type;
+
+	/**
+	 * Length of the text of the chat message; only affects CHAT_MESSAGE.
+	 */
+	@Param({ "64" })
+	public int chatLength;
+
+	private Message msg;
+	private ByteArrayOutputStream bytes;
+	private DataOutputStream out;
+	private ByteArrayInputStream encoded;
+	private DataInputStream in;
+	private ByteBuffer frame;
+
+	@Setup
+	public void setup() throws IOException {
+		switch (type) {
+		case ERROR_RESPONSE:
+			msg = new Message.ErrorResponse("Unknown message type");
+			break;
+		case REGISTER_REQUEST:
+			msg = new Message.RegisterRequest(new UserId(7211), InetAddress.getLoopbackAddress(), 5000);
+			break;
+		case REGISTER_RESPONSE:
+			msg = new Message.RegisterResponse();
+			break;
+		case CHAT_MESSAGE:
+			msg = new Message.ChatMessage(new UserId(7211), "x".repeat(chatLength));
+			break;
+		case CAPABILITIES:
+			msg = new Message.Capabilities(Message.Capabilities.DEFLATE);
+			break;
+		case WINDOW_UPDATE:
+			msg = new Message.WindowUpdate(MessageCodec.INITIAL_STREAM_WINDOW);
+			break;
+		default:
+			throw new IllegalArgumentException("No sample for " + type);
+		}
+		bytes = new ByteArrayOutputStream(256);
+		out = new DataOutputStream(bytes);
+		msg.toStream(out);
+		encoded = new ByteArrayInputStream(bytes.toByteArray());
+		in = new DataInputStream(encoded);
+		frame = ByteBuffer.allocate(MessageCodec.encodedSize(msg));
+		MessageCodec.encode(msg, frame);
+	}
+
+	@Benchmark
+	public ByteArrayOutputStream toStream() throws IOException {
+		bytes.reset();
+		msg.toStream(out);
+		return bytes;
+	}
+
+	@Benchmark
+	public Message parse() throws IOException {
+		encoded.reset();
+		return Message.parse(in);
+	}
+
+	@Benchmark
+	public ByteBuffer frameEncode() throws IOException {
+		frame.clear();
+		MessageCodec.encode(msg, frame);
+		return frame;
+	}
+
+	@Benchmark
+	public Message frameDecode() throws IOException {
+		frame.limit(frame.capacity()).position(MessageCodec.HEADER_SIZE);
+		return MessageCodec.decode(frame);
+	}
+
+	@Benchmark
+	public byte[] serializeMessage(final Chat chat) throws IOException {
+		return chat.msg.serializeMessage();
+	}
+
+	/**
+	 * Chat message for {@link #serializeMessage}, which only exists for CHAT_MESSAGE and therefore
+	 * does not depend on {@link #type}.
+	 */
+	@State(Scope.Thread)
+	public static class Chat {
+
+		@Param({ "64" })
+		public int chatLength;
+
+		private Message.ChatMessage msg;
+
+		@Setup
+		public void setup() {
+			msg = new Message.ChatMessage(new UserId(7211), "x".repeat(chatLength));
+		}
+	}
+}
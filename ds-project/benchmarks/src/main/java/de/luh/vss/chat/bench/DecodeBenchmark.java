@@ -0,0 +1,90 @@
+package de.luh.vss.chat.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import de.luh.vss.chat.common.Message;
+import de.luh.vss.chat.common.MessageType;
+import de.luh.vss.chat.common.User.UserId;
+
+/**
+ * Compares the cost of decoding one message with the former reflective lookup (boxed
+ * {@code HashMap} plus {@code Constructor.newInstance}) and with the array-indexed decoder table
+ * in {@link MessageType}. Both variants decode the same pre-encoded mix of chat messages and
+ * error responses from memory, so the numbers contain no I/O.
+ *
+ * Usage: {@code java -jar benchmarks/target/benchmarks.jar DecodeBenchmark}
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(DecodeBenchmark.MESSAGES)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeBenchmark {
+
+	static final int MESSAGES = 1024;
+
+	private final Map<Integer, Constructor<? extends Message>> reflective = new HashMap<>();
+
+	private byte[] encoded;
+
+	@Setup
+	public void setup() throws Exception {
+		reflective.put(0, Message.ErrorResponse.class.getConstructor(DataInputStream.class));
+		reflective.put(2, Message.RegisterResponse.class.getConstructor(DataInputStream.class));
+		reflective.put(4, Message.ChatMessage.class.getConstructor(DataInputStream.class));
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		for (int i = 0; i < MESSAGES; i++) {
+			if (i % 8 == 0) {
+				new Message.ErrorResponse("error " + i).toStream(out);
+			} else {
+				new Message.ChatMessage(new UserId(i % 10000), "message number " + i).toStream(out);
+			}
+		}
+		encoded = bytes.toByteArray();
+	}
+
+	@Benchmark
+	public void reflective(final Blackhole sink) throws Exception {
+		final DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+		for (int i = 0; i < MESSAGES; i++) {
+			final Constructor<? extends Message> constr = reflective.get(in.readInt());
+			if (constr == null) {
+				throw new IllegalStateException("Unknown message type");
+			}
+			sink.consume(constr.newInstance(in));
+		}
+	}
+
+	@Benchmark
+	public void table(final Blackhole sink) throws IOException {
+		final DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+		for (int i = 0; i < MESSAGES; i++) {
+			sink.consume(Message.parse(in));
+		}
+	}
+}
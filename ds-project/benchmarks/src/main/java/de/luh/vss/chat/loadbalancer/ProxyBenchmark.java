@@ -0,0 +1,154 @@
+package de.luh.vss.chat.loadbalancer;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Misst die heißen Pfade des Load Balancers:
+ * <ul>
+ * <li>{@link LoadBalancer#getNextServer()} (Strategie über LB_STRATEGY), einmal allein und einmal
+ * mit so vielen Threads wie Prozessoren, die gleichzeitig aus demselben Load Balancer wählen.</li>
+ * <li>{@code transferData} über Loopback: ein Thread schreibt {@code mebibytes} MiB in die
+ * Client-Seite, {@code transferData} leitet an einen Empfänger weiter, der alles liest.</li>
+ * </ul>
+ * Liegt im Paket des Load Balancers, weil beide Methoden nicht öffentlich sind.
+ *
+ * Aufruf: {@code java -jar benchmarks/target/benchmarks.jar ProxyBenchmark [-p servers=8] [-p mebibytes=256]}
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProxyBenchmark {
+
+    @Param({"8"})
+    public int servers;
+
+    private final List<ServerSocketChannel> backends = new ArrayList<>();
+    private LoadBalancer loadBalancer;
+
+    @Setup
+    public void setup() throws IOException {
+        Logger.getLogger("de.luh.vss.chat").setLevel(Level.WARNING);
+        // Backend-Server, die Verbindungen annehmen, damit der Backend-Pool sich füllen kann
+        loadBalancer = new LoadBalancer();
+        for (int i = 0; i < servers; i++) {
+            ServerSocketChannel backend = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            backends.add(backend);
+            loadBalancer.addServer(new Server(InetAddress.getLoopbackAddress().getHostAddress(), backend.socket().getLocalPort()));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        for (ServerSocketChannel backend : backends) {
+            backend.close();
+        }
+        backends.clear();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public Server getNextServer() {
+        return loadBalancer.getNextServer();
+    }
+
+    /**
+     * Wie {@link #getNextServer()}, aber alle Prozessoren wählen gleichzeitig, so dass die
+     * Zeit pro Aufruf die Konkurrenz um den gemeinsamen Zustand der Strategie enthält.
+     */
+    @Benchmark
+    @Threads(Threads.MAX)
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public Server getNextServerContended() {
+        return loadBalancer.getNextServer();
+    }
+
+    /**
+     * Leitet {@link Transfer#mebibytes} MiB über ein Paar von Loopback-Verbindungen weiter; die
+     * Zeit pro Aufruf reicht, bis der Empfänger alles gelesen hat.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long transferData(Transfer transfer) throws Exception {
+        long bytes = (long) transfer.mebibytes << 20;
+        InetSocketAddress any = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+        try (ServerSocketChannel clientSide = ServerSocketChannel.open().bind(any);
+             ServerSocketChannel serverSide = ServerSocketChannel.open().bind(any);
+             SocketChannel client = SocketChannel.open(clientSide.getLocalAddress());
+             SocketChannel in = clientSide.accept();
+             SocketChannel out = SocketChannel.open(serverSide.getLocalAddress());
+             SocketChannel receiver = serverSide.accept()) {
+            Thread writer = new Thread(() -> {
+                ByteBuffer chunk = ByteBuffer.allocateDirect(64 * 1024);
+                try {
+                    for (long remaining = bytes; remaining > 0; ) {
+                        chunk.clear().limit((int) Math.min(chunk.capacity(), remaining));
+                        remaining -= client.write(chunk);
+                    }
+                    client.shutdownOutput();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            long[] received = {0};
+            Thread reader = new Thread(() -> {
+                ByteBuffer chunk = ByteBuffer.allocateDirect(64 * 1024);
+                try {
+                    int n;
+                    while ((n = receiver.read(chunk.clear())) != -1) {
+                        received[0] += n;
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            writer.start();
+            reader.start();
+            loadBalancer.transferData(in, out, null, null, false);
+            reader.join();
+            writer.join();
+            if (received[0] != bytes) {
+                throw new IllegalStateException("Received " + received[0] + " of " + bytes + " bytes");
+            }
+            return received[0];
+        }
+    }
+
+    /**
+     * Datenmenge für {@link #transferData}, eigener State, damit die Auswahl-Benchmarks nicht
+     * für jede Menge wiederholt werden.
+     */
+    @State(Scope.Benchmark)
+    public static class Transfer {
+
+        @Param({"256"})
+        public int mebibytes;
+    }
+}
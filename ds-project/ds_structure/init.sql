@@ -14,9 +14,24 @@ CREATE TABLE assignment_results (
     UNIQUE (uid, assignment)        -- Prevents duplicate test results per user for the same assignment
 );
 
+-- Tells the server nodes about every stored result, so their result caches stay consistent
+CREATE FUNCTION notify_assignment_result() RETURNS trigger AS $$
+BEGIN
+    IF TG_OP = 'DELETE' THEN
+        PERFORM pg_notify('assignment_results', OLD.uid || ',' || OLD.assignment || ',');
+        RETURN OLD;
+    END IF;
+    PERFORM pg_notify('assignment_results', NEW.uid || ',' || NEW.assignment || ',' || NEW.passed::text);
+    RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER assignment_results_notify AFTER INSERT OR UPDATE OR DELETE ON assignment_results
+    FOR EACH ROW EXECUTE FUNCTION notify_assignment_result();
+
 CREATE TABLE users_online (
     id SERIAL PRIMARY KEY,        -- Unique identifier for test entries
-    uid INT NOT NULL,             -- Foreign key linking to users table
+    uid INT NOT NULL UNIQUE,      -- Foreign key linking to users table, one row per online user
     ip VARCHAR(50) NOT NULL,      -- IP address of the user
     FOREIGN KEY (uid) REFERENCES users(uid) ON DELETE CASCADE
 );
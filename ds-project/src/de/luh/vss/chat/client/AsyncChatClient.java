@@ -0,0 +1,462 @@
+package de.luh.vss.chat.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.luh.vss.chat.common.Message;
+import de.luh.vss.chat.common.Message.WindowUpdate;
+import de.luh.vss.chat.common.MessageCodec;
+import de.luh.vss.chat.common.MessageCodec.Frame;
+import de.luh.vss.chat.common.MessageCodec.FrameReader;
+import de.luh.vss.chat.common.MessageType;
+
+/**
+ * Asynchronous client for the chat protocol. Every {@link #send} returns a future that completes
+ * with the response to exactly that request, so callers can keep many requests in flight on one
+ * connection without a thread per outstanding call.
+ *
+ * Requests are written as {@link MessageCodec} frames with a correlation id
+ * ({@link MessageCodec#FLAG_CORRELATED}) that the server node, or the load balancer in
+ * {@code l7} mode, echoes in its response. One event-loop thread owns the connection: it
+ * encodes all queued requests into one buffer and writes them together, and completes the
+ * futures as response frames arrive. Futures are completed on the event-loop thread, so
+ * dependent actions should not block.
+ *
+ * {@link #openStream()} gives a logical session of its own, e.g. one per user, that shares the
+ * connection with all other streams. Stream requests are sent as stream frames
+ * ({@link MessageCodec#FLAG_STREAM}) and are handled by the server per stream, so a slow or busy
+ * session does not hold up the others. The event loop writes one request per stream in turn and
+ * holds a stream back once it has used up its send window, until the server returns credit with a
+ * {@link WindowUpdate}.
+ *
+ * <pre>
+ * try (AsyncChatClient client = AsyncChatClient.connect(new InetSocketAddress("localhost", 8080))) {
+ *     client.send(new ChatMessage(new UserId(7211), "hello")).thenAccept(System.out::println);
+ * }
+ * </pre>
+ */
+public class AsyncChatClient implements Closeable {
+	private static final Logger logger = Logger.getLogger(AsyncChatClient.class.getName());
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final long DEFAULT_TIMEOUT = 5000;
+	private static final long TIMEOUT_CHECK_INTERVAL = 100;
+
+	private final SocketChannel channel;
+	private final Selector selector;
+	private final SelectionKey key;
+	private final long timeoutNanos;
+	private final Queue<Request> queue = new ConcurrentLinkedQueue<>();
+	private final Map<Integer, Request> inFlight = new ConcurrentHashMap<>();
+	private final AtomicInteger nextId = new AtomicInteger();
+	private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+	private final Queue<Stream> readyStreams = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger nextStreamId = new AtomicInteger();
+	private final AtomicBoolean wakeupPending = new AtomicBoolean();
+	private volatile boolean open = true;
+
+	// Owned by the event loop
+	private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private final FrameReader frameReader = new FrameReader(MessageCodec.MAX_FRAME_LENGTH);
+	private ByteBuffer oversized; // a request larger than writeBuffer, written on its own
+	private final ArrayDeque<Stream> activeStreams = new ArrayDeque<>(); // streams with requests and window, in turn
+
+	/**
+	 * Connects with the default response timeout of 5 seconds.
+	 *
+	 * @param address the load balancer or a server node
+	 */
+	public static AsyncChatClient connect(final InetSocketAddress address) throws IOException {
+		return new AsyncChatClient(address, DEFAULT_TIMEOUT);
+	}
+
+	/**
+	 * Connects and starts the event loop.
+	 *
+	 * @param address       the load balancer or a server node
+	 * @param timeoutMillis time after which a request without response fails with a
+	 *                      {@link TimeoutException}
+	 */
+	public AsyncChatClient(final InetSocketAddress address, final long timeoutMillis) throws IOException {
+		this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		this.channel = SocketChannel.open(address);
+		this.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		this.channel.configureBlocking(false);
+		this.selector = Selector.open();
+		this.key = channel.register(selector, SelectionKey.OP_READ);
+		final Thread loop = new Thread(this::run, "async-chat-client");
+		loop.setDaemon(true);
+		loop.start();
+	}
+
+	/**
+	 * Sends a request. May be called from any thread; requests are written in call order.
+	 *
+	 * @param msg the request
+	 * @return a future completed with the response, or exceptionally if the connection fails or
+	 *         no response arrives within the timeout
+	 */
+	public CompletableFuture<Message> send(final Message msg) {
+		return send(msg, null);
+	}
+
+	private CompletableFuture<Message> send(final Message msg, final Stream stream) {
+		final Request request = new Request(nextId(), msg, System.nanoTime() + timeoutNanos, stream);
+		if (!open || stream != null && stream.closed) {
+			request.future.completeExceptionally(new ClosedChannelException());
+			return request.future;
+		}
+		inFlight.put(request.id, request);
+		if (stream == null) {
+			queue.add(request);
+		} else {
+			stream.pending.add(request);
+			stream.activate();
+		}
+		wakeup();
+		if (!open && inFlight.remove(request.id) != null) {
+			request.future.completeExceptionally(new ClosedChannelException());
+		}
+		return request.future;
+	}
+
+	/**
+	 * Opens a new stream on the connection. Nothing is sent until the first request.
+	 *
+	 * @return the stream
+	 */
+	public Stream openStream() {
+		int id;
+		do {
+			id = nextStreamId.incrementAndGet();
+		} while (id == MessageCodec.NO_STREAM);
+		final Stream stream = new Stream(id);
+		streams.put(id, stream);
+		return stream;
+	}
+
+	private void wakeup() {
+		if (wakeupPending.compareAndSet(false, true)) {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * @return number of requests sent or queued that have no response yet
+	 */
+	public int inFlight() {
+		return inFlight.size();
+	}
+
+	private int nextId() {
+		int id;
+		do {
+			id = nextId.incrementAndGet();
+		} while (id == MessageCodec.NO_CORRELATION);
+		return id;
+	}
+
+	/**
+	 * Closes the connection. Requests without response fail with a {@link ClosedChannelException}.
+	 */
+	@Override
+	public void close() {
+		open = false;
+		selector.wakeup();
+	}
+
+	private void run() {
+		long nextTimeoutCheck = System.nanoTime();
+		try {
+			while (open) {
+				selector.select(TIMEOUT_CHECK_INTERVAL);
+				wakeupPending.set(false);
+				if (key.isValid() && key.isReadable()) {
+					read();
+				}
+				selector.selectedKeys().clear();
+				write();
+				final long now = System.nanoTime();
+				if (now - nextTimeoutCheck >= 0) {
+					expire(now);
+					nextTimeoutCheck = now + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_CHECK_INTERVAL);
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			if (open) {
+				logger.severe("Connection failed: " + e.getMessage());
+			}
+		} finally {
+			open = false;
+			try {
+				selector.close();
+				channel.close();
+			} catch (IOException ignored) {
+			}
+			failAll(new ClosedChannelException());
+		}
+	}
+
+	/**
+	 * Encodes queued requests into the write buffer and writes as much as the socket takes.
+	 * Waits for OP_WRITE instead of spinning when the socket is full.
+	 */
+	private void write() throws IOException {
+		while (true) {
+			if (oversized != null) {
+				channel.write(oversized);
+				if (oversized.hasRemaining()) {
+					break;
+				}
+				oversized = null;
+			}
+			fill();
+			if (writeBuffer.position() == 0 && oversized == null) {
+				key.interestOps(SelectionKey.OP_READ);
+				return;
+			}
+			writeBuffer.flip();
+			channel.write(writeBuffer);
+			final boolean full = writeBuffer.hasRemaining();
+			writeBuffer.compact();
+			if (full) {
+				break;
+			}
+		}
+		key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	}
+
+	/**
+	 * Encodes requests until the write buffer is full or a request needs a buffer of its own:
+	 * first the requests sent without stream, then one request per stream in turn.
+	 */
+	private void fill() {
+		Request request;
+		while ((request = queue.peek()) != null) {
+			if (put(request) == 0) {
+				return;
+			}
+			queue.poll();
+			if (oversized != null) {
+				return;
+			}
+		}
+		Stream stream;
+		while ((stream = readyStreams.poll()) != null) {
+			activeStreams.add(stream);
+		}
+		while ((stream = activeStreams.poll()) != null) {
+			request = stream.pending.peek();
+			if (request == null) {
+				stream.scheduled.set(false);
+				if (!stream.pending.isEmpty() && stream.scheduled.compareAndSet(false, true)) {
+					activeStreams.add(stream);
+				} else if (stream.closed) {
+					streams.remove(stream.id);
+				}
+				continue;
+			}
+			if (stream.window <= 0) {
+				// Stays scheduled, a window update puts it back in turn
+				stream.parked = true;
+				continue;
+			}
+			final int length = put(request);
+			if (length == 0) {
+				activeStreams.addFirst(stream);
+				return;
+			}
+			stream.pending.poll();
+			stream.window -= Math.max(length, 0);
+			activeStreams.add(stream);
+			if (oversized != null) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Encodes one request into the write buffer, or into a buffer of its own if it is larger.
+	 *
+	 * @return the body length of the written frame, 0 if it does not fit now, -1 if the request
+	 *         failed because it is too large for a frame
+	 */
+	private int put(final Request request) {
+		final int streamId = request.stream == null ? MessageCodec.NO_STREAM : request.stream.id;
+		final int size = MessageCodec.encodedSize(request.msg) + MessageCodec.CORRELATION_SIZE
+				+ (request.stream == null ? 0 : MessageCodec.STREAM_ID_SIZE);
+		ByteBuffer dst = writeBuffer;
+		if (size > writeBuffer.capacity() && writeBuffer.position() == 0) {
+			oversized = ByteBuffer.allocate(size);
+			dst = oversized;
+		} else if (size > writeBuffer.remaining()) {
+			return 0;
+		}
+		final int start = dst.position();
+		try {
+			MessageCodec.encode(request.msg, dst, null, streamId, request.id);
+		} catch (IllegalArgumentException e) {
+			// Too large for a frame, the connection itself is fine
+			oversized = null;
+			if (inFlight.remove(request.id) != null) {
+				request.future.completeExceptionally(e);
+			}
+			return -1;
+		}
+		final int length = dst.position() - start - MessageCodec.HEADER_SIZE;
+		if (dst == oversized) {
+			oversized.flip();
+		}
+		return length;
+	}
+
+	private void read() throws IOException {
+		final int n = channel.read(readBuffer);
+		if (n == -1) {
+			throw new ClosedChannelException();
+		}
+		readBuffer.flip();
+		Frame frame;
+		while ((frame = frameReader.next(readBuffer)) != null) {
+			if (frame.streamId() != MessageCodec.NO_STREAM && frame.type() == MessageType.WINDOW_UPDATE) {
+				update(frame);
+				continue;
+			}
+			final Request request = inFlight.remove(frame.correlationId());
+			if (request == null) {
+				if (logger.isLoggable(Level.FINE)) {
+					logger.fine("Response without pending request: " + frame.correlationId());
+				}
+				continue;
+			}
+			try {
+				request.future.complete(frame.message());
+			} catch (IOException | IllegalStateException e) {
+				request.future.completeExceptionally(e);
+			}
+		}
+		readBuffer.compact();
+	}
+
+	private void update(final Frame frame) throws IOException {
+		final Stream stream = streams.get(frame.streamId());
+		if (stream == null) {
+			return;
+		}
+		stream.window += ((WindowUpdate) frame.message()).getIncrement();
+		if (stream.parked && stream.window > 0) {
+			stream.parked = false;
+			activeStreams.add(stream);
+		}
+	}
+
+	private void expire(final long now) {
+		for (final Iterator<Request> it = inFlight.values().iterator(); it.hasNext();) {
+			final Request request = it.next();
+			if (now - request.deadline > 0) {
+				it.remove();
+				request.future.completeExceptionally(new TimeoutException("No response to request " + request.id));
+			}
+		}
+	}
+
+	private void failAll(final IOException cause) {
+		for (final Iterator<Request> it = inFlight.values().iterator(); it.hasNext();) {
+			final Request request = it.next();
+			it.remove();
+			request.future.completeExceptionally(cause);
+		}
+		queue.clear();
+		for (final Stream stream : streams.values()) {
+			stream.pending.clear();
+		}
+	}
+
+	/**
+	 * A logical session on the connection with its own ordering and flow control. Requests of one
+	 * stream are answered in order; requests of different streams are independent.
+	 */
+	public final class Stream implements Closeable {
+		private final int id;
+		private final Queue<Request> pending = new ConcurrentLinkedQueue<>();
+		private final AtomicBoolean scheduled = new AtomicBoolean(); // queued for or owned by the event loop
+		private volatile boolean closed;
+		// Owned by the event loop
+		private int window = MessageCodec.INITIAL_STREAM_WINDOW;
+		private boolean parked; // out of window, waiting for a window update
+
+		private Stream(final int id) {
+			this.id = id;
+		}
+
+		/**
+		 * @return the stream id, unique on the connection
+		 */
+		public int id() {
+			return id;
+		}
+
+		/**
+		 * Sends a request on this stream. May be called from any thread; requests of the stream
+		 * are written in call order.
+		 *
+		 * @param msg the request
+		 * @return a future completed with the response, or exceptionally if the connection fails,
+		 *         the stream is closed or no response arrives within the timeout
+		 */
+		public CompletableFuture<Message> send(final Message msg) {
+			return AsyncChatClient.this.send(msg, this);
+		}
+
+		/**
+		 * Closes the stream. Requests already sent are still answered.
+		 */
+		@Override
+		public void close() {
+			closed = true;
+			activate();
+			wakeup();
+		}
+
+		private void activate() {
+			if (scheduled.compareAndSet(false, true)) {
+				readyStreams.add(this);
+			}
+		}
+	}
+
+	private static final class Request {
+		private final int id;
+		private final Message msg;
+		private final long deadline;
+		private final Stream stream;
+		private final CompletableFuture<Message> future = new CompletableFuture<>();
+
+		Request(final int id, final Message msg, final long deadline, final Stream stream) {
+			this.id = id;
+			this.msg = msg;
+			this.deadline = deadline;
+			this.stream = stream;
+		}
+	}
+}
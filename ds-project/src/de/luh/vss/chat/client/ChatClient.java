@@ -33,11 +33,17 @@ public class ChatClient {
     
     /**
      * Main method to start the ChatClient.
-     * @param args Command line arguments
+     * @param args Command line arguments, {@code load} starts the {@link LoadGenerator} instead
      */
 	public static void main(String... args) {
 		try {
+			if (args.length > 0 && "load".equalsIgnoreCase(args[0])) {
+				new LoadGenerator().run();
+				return;
+			}
 			new ChatClient().start();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -99,6 +105,10 @@ public class ChatClient {
 				// Check if the server sent a error message
 				else if(message.getMessageType() == MessageType.ERROR_RESPONSE) {
 					handleErrorResponse((ErrorResponse)message);
+				}
+				// Lease granted or renewed
+				else if(message.getMessageType() == MessageType.REGISTER_RESPONSE) {
+					logger.fine("displayMessages: Lease renewed");
 				}else{
                     logger.severe("displayMessages: Unhandled message type: " + message.getMessageType().toString());
                 }
@@ -107,7 +117,7 @@ public class ChatClient {
 				logger.severe("displayMessages(Parsing Error): " + e);
 				break;
 			}
-			catch(IllegalStateException | ReflectiveOperationException e) {
+			catch(IllegalStateException e) {
 				logger.severe("displayMessages: " + e.getMessage());
 			}
 		}
@@ -0,0 +1,258 @@
+package de.luh.vss.chat.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import de.luh.vss.chat.common.LatencyHistogram;
+import de.luh.vss.chat.common.Message;
+import de.luh.vss.chat.common.Message.ChatMessage;
+import de.luh.vss.chat.common.Message.RegisterRequest;
+import de.luh.vss.chat.common.MessageType;
+import de.luh.vss.chat.common.User.UserId;
+
+/**
+ * Open-loop load generator: simulates many users sending chat messages and lease renewals over
+ * a few pipelined connections to the load balancer, started with {@code ChatClient load}.
+ *
+ * Requests arrive at the configured rate with exponentially distributed gaps (a Poisson process)
+ * no matter how fast responses come back. Each request is stamped with the time it was due, not
+ * the time it was written, so a stalled system shows up in the latency instead of silently
+ * lowering the offered load. Responses on a connection come back in request order, so every
+ * response is matched with the oldest outstanding request of its connection.
+ *
+ * Configuration through environment variables:
+ * <ul>
+ * <li>LOAD_HOST / LOAD_PORT: target, default localhost:8080</li>
+ * <li>LOAD_RATE: requests per second over all users, default 1000</li>
+ * <li>LOAD_DURATION: seconds to generate load, default 30</li>
+ * <li>LOAD_USERS / LOAD_UID_BASE: number of simulated user ids and the first id, default 1000 / 1000; ids must stay within 1 to 9999</li>
+ * <li>LOAD_CONNECTIONS: connections the users are spread over, default 16</li>
+ * <li>LOAD_REGISTER_RATIO: share of REGISTER_REQUESTs, the rest are chat messages, default 0.1</li>
+ * <li>LOAD_MESSAGE_SIZE / LOAD_SIZE_DISTRIBUTION: chat message length in characters and its
+ * distribution, {@code fixed}, {@code uniform} (0 to twice the size) or {@code exponential}
+ * (mean size), default 64 / fixed</li>
+ * </ul>
+ */
+public class LoadGenerator {
+
+	private static final long REPORT_INTERVAL = 5000;
+	private static final long DRAIN_TIMEOUT = 5000;
+	private static final int MAX_MESSAGE_SIZE = 60000; // writeUTF limit with some headroom
+
+	private final String host = env("LOAD_HOST", "localhost");
+	private final int port = Integer.parseInt(env("LOAD_PORT", "8080"));
+	private final double rate = Double.parseDouble(env("LOAD_RATE", "1000"));
+	private final long durationMillis = Long.parseLong(env("LOAD_DURATION", "30")) * 1000;
+	private final int users = Integer.parseInt(env("LOAD_USERS", "1000"));
+	private final int uidBase = Integer.parseInt(env("LOAD_UID_BASE", "1000"));
+	private final int connectionCount = Integer.parseInt(env("LOAD_CONNECTIONS", "16"));
+	private final double registerRatio = Double.parseDouble(env("LOAD_REGISTER_RATIO", "0.1"));
+	private final int messageSize = Integer.parseInt(env("LOAD_MESSAGE_SIZE", "64"));
+	private final String sizeDistribution = env("LOAD_SIZE_DISTRIBUTION", "fixed");
+
+	private final String text = "x".repeat(MAX_MESSAGE_SIZE);
+	private final LatencyHistogram total = new LatencyHistogram();
+	private final LatencyHistogram interval = new LatencyHistogram();
+	private final LongAdder sent = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private final List<Connection> connections = new ArrayList<>();
+
+	private static String env(final String name, final String defaultValue) {
+		final String value = System.getenv(name);
+		return value == null ? defaultValue : value;
+	}
+
+	/**
+	 * Generates load for the configured duration and prints the results.
+	 */
+	public void run() throws IOException, InterruptedException {
+		if (users < 1 || uidBase < 1 || uidBase + users - 1 > 9999) {
+			throw new IllegalArgumentException("LOAD_UID_BASE and LOAD_USERS must give user ids within 1 to 9999");
+		}
+		System.out.printf("Load: %.0f req/s for %d s, %d users over %d connections to %s:%d, %.0f%% REGISTER_REQUEST, "
+				+ "message size %d (%s)%n", rate, durationMillis / 1000, users, connectionCount, host, port,
+				registerRatio * 100, messageSize, sizeDistribution);
+		for (int i = 0; i < connectionCount; i++) {
+			final Connection connection = new Connection(new Socket(host, port));
+			connections.add(connection);
+			connection.start();
+		}
+
+		final Random random = new Random();
+		final long start = System.nanoTime();
+		final long end = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+		long nextReport = start + TimeUnit.MILLISECONDS.toNanos(REPORT_INTERVAL);
+		long lastReport = start;
+		long due = start;
+		while (due < end) {
+			// Catch up on every request that is due, then wait for the next one
+			long now = System.nanoTime();
+			while (due <= now && due < end) {
+				final int user = random.nextInt(users);
+				connections.get(user % connectionCount).submit(due, request(uidBase + user, random));
+				due += (long) (-Math.log(1 - random.nextDouble()) / rate * 1e9);
+			}
+			if (now >= nextReport) {
+				report("interval", interval, now - lastReport);
+				interval.reset();
+				lastReport = now;
+				nextReport += TimeUnit.MILLISECONDS.toNanos(REPORT_INTERVAL);
+			}
+			LockSupport.parkNanos(Math.min(due, nextReport) - System.nanoTime());
+		}
+
+		// Wait for the outstanding responses
+		final long drainDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DRAIN_TIMEOUT);
+		while (outstanding() > 0 && System.nanoTime() < drainDeadline) {
+			Thread.sleep(10);
+		}
+		final long elapsed = System.nanoTime() - start;
+		report("total", total, elapsed);
+		System.out.printf("sent %d, outstanding %d, error responses %d, failed connections %d, offered %.0f req/s%n",
+				sent.sum(), outstanding(), errors.sum(), failed.sum(), sent.sum() * 1e9 / Math.min(elapsed, end - start));
+		for (final Connection connection : connections) {
+			connection.close();
+		}
+	}
+
+	private Message request(final int uid, final Random random) {
+		if (random.nextDouble() < registerRatio) {
+			return new RegisterRequest(new UserId(uid), InetAddress.getLoopbackAddress(), 40000 + uid % 20000);
+		}
+		return new ChatMessage(new UserId(uid), text.substring(0, size(random)));
+	}
+
+	private int size(final Random random) {
+		final double size;
+		switch (sizeDistribution) {
+		case "uniform":
+			size = random.nextDouble() * 2 * messageSize;
+			break;
+		case "exponential":
+			size = -Math.log(1 - random.nextDouble()) * messageSize;
+			break;
+		default:
+			size = messageSize;
+		}
+		return (int) Math.min(MAX_MESSAGE_SIZE, Math.max(1, Math.round(size)));
+	}
+
+	private long outstanding() {
+		long n = 0;
+		for (final Connection connection : connections) {
+			n += connection.inFlight.size() + connection.queue.size();
+		}
+		return n;
+	}
+
+	private static void report(final String label, final LatencyHistogram histogram, final long nanos) {
+		System.out.printf("%-8s %10.0f resp/s  p50 %8d us  p99 %8d us  p999 %8d us  mean %8.0f us  (%d responses)%n",
+				label, histogram.count() * 1e9 / nanos, histogram.percentile(0.5), histogram.percentile(0.99),
+				histogram.percentile(0.999), histogram.mean(), histogram.count());
+	}
+
+	/**
+	 * One pipelined connection: a writer that sends queued requests and flushes once the queue
+	 * is empty, and a reader that matches responses with the requests in flight. Both run on
+	 * virtual threads.
+	 */
+	private final class Connection {
+		private final Socket socket;
+		private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+		private final ConcurrentLinkedQueue<Long> inFlight = new ConcurrentLinkedQueue<>();
+		private volatile boolean open = true;
+
+		Connection(final Socket socket) throws IOException {
+			this.socket = socket;
+			socket.setTcpNoDelay(true);
+		}
+
+		void start() throws IOException {
+			final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			Thread.ofVirtual().start(() -> write(out));
+			Thread.ofVirtual().start(() -> read(in));
+		}
+
+		void submit(final long due, final Message msg) {
+			if (open) {
+				queue.add(new Request(due, msg));
+			}
+		}
+
+		private void write(final DataOutputStream out) {
+			try {
+				while (open) {
+					final Request request = queue.poll(100, TimeUnit.MILLISECONDS);
+					if (request == null) {
+						continue;
+					}
+					inFlight.add(request.due());
+					request.msg().toStream(out);
+					sent.increment();
+					if (queue.isEmpty()) {
+						out.flush();
+					}
+				}
+			} catch (IOException | InterruptedException e) {
+				fail(e);
+			}
+		}
+
+		private void read(final DataInputStream in) {
+			try {
+				while (open) {
+					final Message response = Message.parse(in);
+					final long now = System.nanoTime();
+					final Long due = inFlight.poll();
+					if (due == null) {
+						continue;
+					}
+					if (response.getMessageType() == MessageType.ERROR_RESPONSE) {
+						errors.increment();
+					}
+					final long micros = (now - due) / 1000;
+					total.record(micros);
+					interval.record(micros);
+				}
+			} catch (IOException | IllegalStateException e) {
+				fail(e);
+			}
+		}
+
+		private void fail(final Exception e) {
+			if (open) {
+				failed.increment();
+				System.err.println("Connection failed: " + e.getMessage());
+				close();
+			}
+		}
+
+		void close() {
+			open = false;
+			queue.clear();
+			inFlight.clear();
+			try {
+				socket.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+
+	private record Request(long due, Message msg) {
+	}
+}
@@ -0,0 +1,94 @@
+package de.luh.vss.chat.common;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A shared pool of equally sized direct {@link ByteBuffer}s. How long a buffer is held depends
+ * on the caller: the NIO proxy and the L7 router borrow one only while data is in flight, so
+ * their idle connections hold no buffer, whereas the blocking proxy keeps one per direction for
+ * the whole life of a connection because its thread is parked in a read on it.
+ */
+public final class BufferPool {
+
+	private final int bufferSize;
+	private final int maxPooled;
+	private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger pooled = new AtomicInteger();
+	private final AtomicInteger inUse = new AtomicInteger();
+	private final AtomicInteger allocated = new AtomicInteger();
+
+	/**
+	 * @param bufferSize size of every buffer in bytes
+	 * @param maxPooled  maximum number of idle buffers kept for reuse
+	 */
+	public BufferPool(final int bufferSize, final int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+
+	/**
+	 * Borrows a cleared buffer, allocating a new one if the pool is empty.
+	 *
+	 * @return a buffer in write mode
+	 */
+	public ByteBuffer acquire() {
+		inUse.incrementAndGet();
+		final ByteBuffer buffer = free.poll();
+		if (buffer != null) {
+			pooled.decrementAndGet();
+			return buffer;
+		}
+		allocated.incrementAndGet();
+		return ByteBuffer.allocateDirect(bufferSize);
+	}
+
+	/**
+	 * Returns a buffer to the pool. Buffers beyond the pool limit are left to the GC.
+	 *
+	 * @param buffer a buffer obtained from {@link #acquire()}
+	 */
+	public void release(final ByteBuffer buffer) {
+		inUse.decrementAndGet();
+		if (pooled.incrementAndGet() > maxPooled) {
+			pooled.decrementAndGet();
+			allocated.decrementAndGet();
+			return;
+		}
+		buffer.clear();
+		free.offer(buffer);
+	}
+
+	public int bufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * @return number of buffers currently borrowed
+	 */
+	public int inUse() {
+		return inUse.get();
+	}
+
+	/**
+	 * @return number of idle buffers waiting in the pool
+	 */
+	public int pooled() {
+		return pooled.get();
+	}
+
+	/**
+	 * @return number of live buffers, borrowed or idle
+	 */
+	public int allocated() {
+		return allocated.get();
+	}
+
+	@Override
+	public String toString() {
+		return "BufferPool (size " + bufferSize + ", in use " + inUse() + ", pooled " + pooled() + ", allocated "
+				+ allocated() + ")";
+	}
+}
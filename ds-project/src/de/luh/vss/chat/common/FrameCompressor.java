@@ -0,0 +1,95 @@
+package de.luh.vss.chat.common;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Per-connection DEFLATE state for {@link MessageCodec} frames carrying the
+ * {@link MessageCodec#FLAG_DEFLATE} flag. The deflater and inflater are created once and reset
+ * for every payload, so compressing a frame allocates nothing. Instances are not thread-safe; a
+ * connection is only used by one thread at a time.
+ */
+public final class FrameCompressor {
+
+	private final int threshold;
+	private final Deflater deflater;
+	private final Inflater inflater = new Inflater(true);
+	private ByteBuffer scratch = ByteBuffer.allocate(4096);
+
+	/**
+	 * @param threshold smallest payload in bytes worth compressing
+	 * @param level     deflate level, 1 (fast) to 9 (small)
+	 */
+	public FrameCompressor(final int threshold, final int level) {
+		this.threshold = threshold;
+		this.deflater = new Deflater(level, true);
+	}
+
+	public int threshold() {
+		return threshold;
+	}
+
+	/**
+	 * A heap buffer of at least the given size, reused between calls.
+	 */
+	ByteBuffer scratch(final int size) {
+		if (scratch.capacity() < size) {
+			scratch = ByteBuffer.allocate(Math.max(size, scratch.capacity() * 2));
+		}
+		scratch.clear();
+		return scratch;
+	}
+
+	/**
+	 * Compresses the remaining bytes of {@code raw} into {@code dst}.
+	 *
+	 * @return false if the compressed form would not be smaller than the input; {@code dst} is
+	 *         left unchanged in that case
+	 */
+	boolean deflate(final ByteBuffer raw, final ByteBuffer dst) {
+		final int start = dst.position();
+		final int limit = dst.limit();
+		// Anything that does not end up smaller than the input is not worth sending compressed
+		dst.limit(Math.min(limit, start + raw.remaining() - 1));
+		deflater.reset();
+		deflater.setInput(raw);
+		deflater.finish();
+		while (!deflater.finished() && dst.hasRemaining()) {
+			deflater.deflate(dst);
+		}
+		final boolean smaller = deflater.finished();
+		dst.limit(limit);
+		if (!smaller) {
+			dst.position(start);
+		}
+		return smaller;
+	}
+
+	/**
+	 * Decompresses the remaining bytes of {@code src} into {@code dst}.
+	 *
+	 * @throws DataFormatException if the data is corrupt or does not fill {@code dst} exactly
+	 */
+	void inflate(final ByteBuffer src, final ByteBuffer dst) throws DataFormatException {
+		inflater.reset();
+		inflater.setInput(src);
+		while (dst.hasRemaining() && !inflater.finished()) {
+			if (inflater.inflate(dst) == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+				throw new DataFormatException("Truncated compressed payload");
+			}
+		}
+		if (dst.hasRemaining()) {
+			throw new DataFormatException("Compressed payload shorter than announced");
+		}
+	}
+
+	/**
+	 * Releases the native zlib state.
+	 */
+	public void end() {
+		deflater.end();
+		inflater.end();
+	}
+}
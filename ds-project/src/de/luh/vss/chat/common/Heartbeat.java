@@ -0,0 +1,154 @@
+package de.luh.vss.chat.common;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary UDP heartbeat sent by a server node to the load balancer. Besides the node address it
+ * carries the current utilization of the node so the load balancer can steer traffic away from
+ * saturated nodes.
+ *
+ * <pre>
+ * byte  magic (0x7F, never the first byte of a legacy "host:port" heartbeat)
+ * byte  version
+ * byte  flags (bit 0: draining)
+ * int   port
+ * int   active connections
+ * int   handler queue depth
+ * int   p99 handling latency in microseconds
+ * int   database write backlog
+ * byte  host length, followed by the UTF-8 host name
+ * </pre>
+ *
+ * Instances are mutable so a receiver can decode every packet into the same object.
+ */
+public final class Heartbeat {
+
+	public static final byte MAGIC = 0x7F;
+	public static final byte VERSION = 1;
+	public static final int MAX_SIZE = 3 + 5 * 4 + 1 + 255;
+
+	private static final int FLAG_DRAINING = 1;
+
+	private byte[] host = new byte[0];
+	private int hostOffset;
+	private int hostLength;
+	private int port;
+	private int activeConnections;
+	private int queueDepth;
+	private int p99Micros;
+	private int dbBacklog;
+	private boolean draining;
+
+	/**
+	 * Checks whether a packet uses the binary format.
+	 *
+	 * @param data   the packet data
+	 * @param length the packet length
+	 * @return true for a binary heartbeat, false for a legacy "host:port" heartbeat
+	 */
+	public static boolean isBinary(final byte[] data, final int length) {
+		return length > 0 && data[0] == MAGIC;
+	}
+
+	/**
+	 * Decodes a packet into this instance without allocating. The host bytes are referenced,
+	 * not copied, and stay valid until the packet buffer is reused.
+	 *
+	 * @param data   the packet data
+	 * @param length the packet length
+	 * @return this instance
+	 * @throws IllegalArgumentException if the packet is not a valid heartbeat
+	 */
+	public Heartbeat decode(final byte[] data, final int length) {
+		if (length < MAX_SIZE - 255 || data[0] != MAGIC || data[1] != VERSION) {
+			throw new IllegalArgumentException("Invalid heartbeat");
+		}
+		draining = (data[2] & FLAG_DRAINING) != 0;
+		port = readInt(data, 3);
+		activeConnections = readInt(data, 7);
+		queueDepth = readInt(data, 11);
+		p99Micros = readInt(data, 15);
+		dbBacklog = readInt(data, 19);
+		hostLength = data[23] & 0xFF;
+		hostOffset = 24;
+		if (hostOffset + hostLength > length) {
+			throw new IllegalArgumentException("Invalid heartbeat");
+		}
+		host = data;
+		return this;
+	}
+
+	/**
+	 * Encodes a heartbeat into a buffer.
+	 *
+	 * @param out the target buffer with at least {@link #MAX_SIZE} bytes remaining
+	 */
+	public static void encode(final ByteBuffer out, final String host, final int port, final int activeConnections,
+			final int queueDepth, final int p99Micros, final int dbBacklog, final boolean draining) {
+		final byte[] hostBytes = host.getBytes(StandardCharsets.UTF_8);
+		if (hostBytes.length > 255) {
+			throw new IllegalArgumentException("Host name too long");
+		}
+		out.put(MAGIC).put(VERSION).put((byte) (draining ? FLAG_DRAINING : 0));
+		out.putInt(port).putInt(activeConnections).putInt(queueDepth).putInt(p99Micros).putInt(dbBacklog);
+		out.put((byte) hostBytes.length).put(hostBytes);
+	}
+
+	/**
+	 * Compares the decoded host name with the given bytes without allocating.
+	 *
+	 * @param other UTF-8 bytes of a host name
+	 * @return true if the host names are equal
+	 */
+	public boolean hostEquals(final byte[] other) {
+		if (other.length != hostLength) {
+			return false;
+		}
+		for (int i = 0; i < hostLength; i++) {
+			if (host[hostOffset + i] != other[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public String getHost() {
+		return new String(host, hostOffset, hostLength, StandardCharsets.UTF_8);
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public int getActiveConnections() {
+		return activeConnections;
+	}
+
+	public int getQueueDepth() {
+		return queueDepth;
+	}
+
+	public int getP99Micros() {
+		return p99Micros;
+	}
+
+	public int getDbBacklog() {
+		return dbBacklog;
+	}
+
+	public boolean isDraining() {
+		return draining;
+	}
+
+	private static int readInt(final byte[] data, final int offset) {
+		return (data[offset] & 0xFF) << 24 | (data[offset + 1] & 0xFF) << 16 | (data[offset + 2] & 0xFF) << 8
+				| (data[offset + 3] & 0xFF);
+	}
+
+	@Override
+	public String toString() {
+		return "HEARTBEAT (" + getHost() + ":" + port + ", connections " + activeConnections + ", queue " + queueDepth
+				+ ", p99 " + p99Micros + "us, db backlog " + dbBacklog + (draining ? ", draining" : "") + ")";
+	}
+}
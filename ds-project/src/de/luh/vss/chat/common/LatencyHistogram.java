@@ -0,0 +1,125 @@
+package de.luh.vss.chat.common;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free, allocation-free latency histogram with log-linear buckets (HDR style). Every
+ * power of two is split into 32 sub-buckets, so recorded values keep a relative precision of
+ * about 3% over the whole range of {@code long}.
+ */
+public final class LatencyHistogram {
+
+	private static final int SUB_BITS = 5;
+	private static final int SUB = 1 << SUB_BITS;
+	private static final int BUCKETS = SUB * (64 - SUB_BITS + 1);
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+
+	/**
+	 * Records a single value. Negative values are recorded as zero.
+	 *
+	 * @param value the value, e.g. a latency in microseconds
+	 */
+	public void record(final long value) {
+		final long v = Math.max(0, value);
+		counts.incrementAndGet(index(v));
+		count.increment();
+		sum.add(v);
+	}
+
+	/**
+	 * @return number of recorded values
+	 */
+	public long count() {
+		return count.sum();
+	}
+
+	/**
+	 * @return sum of all recorded values
+	 */
+	public long sum() {
+		return sum.sum();
+	}
+
+	/**
+	 * @return mean of all recorded values or 0 if nothing was recorded
+	 */
+	public double mean() {
+		final long n = count();
+		return n == 0 ? 0 : (double) sum() / n;
+	}
+
+	/**
+	 * Returns the value at the given quantile. The result is the upper bound of the bucket the
+	 * quantile falls into.
+	 *
+	 * @param quantile a quantile between 0 and 1, e.g. 0.99
+	 * @return the value at the quantile or 0 if nothing was recorded
+	 */
+	public long percentile(final double quantile) {
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			total += counts.get(i);
+		}
+		if (total == 0) {
+			return 0;
+		}
+		final long rank = Math.max(1, (long) Math.ceil(quantile * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return upperBound(i);
+			}
+		}
+		return upperBound(BUCKETS - 1);
+	}
+
+	/**
+	 * Adds the counts of another histogram to this one.
+	 *
+	 * @param other the histogram to merge
+	 */
+	public void add(final LatencyHistogram other) {
+		for (int i = 0; i < BUCKETS; i++) {
+			final long c = other.counts.get(i);
+			if (c != 0) {
+				counts.addAndGet(i, c);
+			}
+		}
+		count.add(other.count());
+		sum.add(other.sum());
+	}
+
+	/**
+	 * Clears all recorded values. Values recorded concurrently may be lost.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		count.reset();
+		sum.reset();
+	}
+
+	static int index(final long v) {
+		if (v < SUB) {
+			return (int) v;
+		}
+		final int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+		return SUB * shift + (int) (v >>> shift);
+	}
+
+	static long upperBound(final int index) {
+		if (index < SUB) {
+			return index;
+		}
+		final int shift = index / SUB - 1;
+		final long mantissa = index % SUB + SUB;
+		final long bound = ((mantissa + 1) << shift) - 1;
+		return bound < 0 ? Long.MAX_VALUE : bound;
+	}
+}
@@ -116,6 +116,10 @@ public abstract class Message {
 			return MessageType.ERROR_RESPONSE;
 		}
 
+		public String getErrorMessage() {
+			return errorMsg;
+		}
+
 		@Override
 		public String toString() {
 			return "ERROR_RESPONSE (" + errorMsg + ")";
@@ -123,6 +127,90 @@ public abstract class Message {
 
 	}
 
+	/**
+	 * Negotiates optional features of a connection. The initiating peer offers a set of
+	 * capability bits, the other peer answers with the subset it supports. Peers that never
+	 * send this message are treated as supporting nothing.
+	 */
+	public static class Capabilities extends Message {
+
+		public static final int DEFLATE = 0x01;
+
+		private final int bits;
+
+		public Capabilities(final int bits) {
+			this.bits = bits;
+		}
+
+		public Capabilities(final DataInputStream in) throws IOException {
+			this.bits = in.readInt();
+		}
+
+		@Override
+		public MessageType getMessageType() {
+			return MessageType.CAPABILITIES;
+		}
+
+		@Override
+		public void toStream(final DataOutputStream out) throws IOException {
+			out.writeInt(MessageType.CAPABILITIES.msgType());
+			out.writeInt(bits);
+		}
+
+		public int getBits() {
+			return bits;
+		}
+
+		public boolean supports(final int capability) {
+			return (bits & capability) == capability;
+		}
+
+		@Override
+		public String toString() {
+			return "CAPABILITIES (" + Integer.toBinaryString(bits) + ")";
+		}
+
+	}
+
+	/**
+	 * Returns send credit on a stream (see {@link MessageCodec#FLAG_STREAM}): the receiver of
+	 * stream frames sends it once it has handled them, the increment is the body length of the
+	 * handled frames. Only meaningful as a stream frame and never answered.
+	 */
+	public static class WindowUpdate extends Message {
+
+		private final int increment;
+
+		public WindowUpdate(final int increment) {
+			this.increment = increment;
+		}
+
+		public WindowUpdate(final DataInputStream in) throws IOException {
+			this.increment = in.readInt();
+		}
+
+		@Override
+		public MessageType getMessageType() {
+			return MessageType.WINDOW_UPDATE;
+		}
+
+		@Override
+		public void toStream(final DataOutputStream out) throws IOException {
+			out.writeInt(MessageType.WINDOW_UPDATE.msgType());
+			out.writeInt(increment);
+		}
+
+		public int getIncrement() {
+			return increment;
+		}
+
+		@Override
+		public String toString() {
+			return "WINDOW_UPDATE (" + increment + ")";
+		}
+
+	}
+
 	public static class ChatMessage extends Message {
 
 		private final UserId recipient;
@@ -209,7 +297,7 @@ public abstract class Message {
 
 	}
 
-	public static Message parse(final DataInputStream in) throws IOException, ReflectiveOperationException {
+	public static Message parse(final DataInputStream in) throws IOException {
 		return MessageType.fromInt(in.readInt(), in);
 	}
 
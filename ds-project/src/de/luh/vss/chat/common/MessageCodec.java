@@ -0,0 +1,629 @@
+package de.luh.vss.chat.common;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+
+import de.luh.vss.chat.common.User.UserId;
+
+/**
+ * Length-prefixed binary codec for all {@link Message} types, working directly on
+ * {@link ByteBuffer}s. Each frame starts with a header word whose sign bit is set, so it can never
+ * be mistaken for the type code that starts a message written by {@link Message#toStream}. Peers
+ * can therefore mix both formats on one connection.
+ *
+ * <pre>
+ * int   header: bit 31 frame marker, bits 24-30 flags, bits 0-23 body length
+ * byte  message type code
+ * ...   fields; ints big-endian, strings as int byte length followed by UTF-8 bytes
+ * </pre>
+ *
+ * Strings are not limited to the 64 KB of {@code writeUTF}. A {@link Frame} gives access to the
+ * type and the chat recipient without decoding the payload; {@link FrameReader} assembles frames
+ * from partial reads of a non-blocking transport.
+ *
+ * With {@link #FLAG_DEFLATE} the text of a chat message is replaced by its UTF-8 length followed
+ * by the raw DEFLATE data up to the end of the frame; type and recipient stay uncompressed so
+ * frames can still be routed without inflating them. The flag is only used on connections that
+ * negotiated {@link Message.Capabilities#DEFLATE}.
+ *
+ * With {@link #FLAG_CORRELATED} the body starts with an int correlation id before the type code.
+ * A peer answering such a frame sends the same id back, so a client can match responses to
+ * requests regardless of their order. {@link Frame} strips the id, so {@link Frame#body()},
+ * {@link Frame#type()} and decoding see the same layout as without it.
+ *
+ * With {@link #FLAG_STREAM} the body starts with an int stream id, followed by the correlation id
+ * if flagged. Streams let many logical sessions share one connection: the receiver handles each
+ * stream on its own, so a slow request only delays later requests of the same stream. Every
+ * stream has a send window of {@link #INITIAL_STREAM_WINDOW} bytes of frame body. A peer may send
+ * on a stream while its window is positive and subtracts the body length of every frame it sends;
+ * the receiver returns the credit with a {@link Message.WindowUpdate} on the stream once it has
+ * handled the frame. A busy stream therefore runs out of window instead of filling the
+ * receiver's queues. {@link Frame} strips the stream id as well.
+ */
+public final class MessageCodec {
+
+	public static final int FRAME_MARKER = 0x80000000;
+	public static final int HEADER_SIZE = 4;
+	public static final int MAX_FRAME_LENGTH = 0xFFFFFF;
+
+	public static final int FLAG_DEFLATE = 0x01;
+	public static final int FLAG_CORRELATED = 0x02;
+	public static final int FLAG_STREAM = 0x04;
+
+	public static final int CORRELATION_SIZE = 4;
+	public static final int NO_CORRELATION = 0;
+
+	public static final int STREAM_ID_SIZE = 4;
+	public static final int NO_STREAM = 0;
+	public static final int INITIAL_STREAM_WINDOW = 64 * 1024;
+
+	private static final int FLAGS_SHIFT = 24;
+	private static final int FLAGS_MASK = 0x7F;
+	private static final int RECIPIENT_OFFSET = 1;
+
+	private MessageCodec() {
+	}
+
+	/**
+	 * @param word the first int of a message
+	 * @return true if the word is a frame header rather than a {@link Message#toStream} type code
+	 */
+	public static boolean isFrameHeader(final int word) {
+		return word < 0;
+	}
+
+	public static int frameLength(final int header) {
+		return header & MAX_FRAME_LENGTH;
+	}
+
+	public static int frameFlags(final int header) {
+		return header >>> FLAGS_SHIFT & FLAGS_MASK;
+	}
+
+	/**
+	 * @return the size of the complete frame for the message, header included; a correlated
+	 *         frame takes {@link #CORRELATION_SIZE} bytes more, a stream frame
+	 *         {@link #STREAM_ID_SIZE} bytes more
+	 */
+	public static int encodedSize(final Message msg) {
+		return HEADER_SIZE + bodySize(msg);
+	}
+
+	/**
+	 * Writes the message as one frame at the current position of the buffer.
+	 *
+	 * @throws BufferOverflowException if the frame does not fit, nothing is written in that case
+	 */
+	public static void encode(final Message msg, final ByteBuffer dst) {
+		encode(msg, dst, 0);
+	}
+
+	/**
+	 * Writes the message as one frame, compressing the text of a chat message if a compressor is
+	 * given and the text reaches its threshold. {@link #encodedSize} is an upper bound for the
+	 * compressed frame as well, since compression is dropped when it does not save space.
+	 *
+	 * @param compressor the connection's compression state, or null if not negotiated
+	 * @throws BufferOverflowException if the frame does not fit, nothing is written in that case
+	 */
+	public static void encode(final Message msg, final ByteBuffer dst, final FrameCompressor compressor) {
+		encode(msg, dst, compressor, NO_CORRELATION);
+	}
+
+	/**
+	 * Writes the message as one frame like {@link #encode(Message, ByteBuffer, FrameCompressor)},
+	 * tagged with a correlation id unless it is {@link #NO_CORRELATION}.
+	 *
+	 * @param correlationId id the peer echoes in its answer
+	 * @throws BufferOverflowException if the frame does not fit, nothing is written in that case
+	 */
+	public static void encode(final Message msg, final ByteBuffer dst, final FrameCompressor compressor,
+			final int correlationId) {
+		encode(msg, dst, compressor, NO_STREAM, correlationId);
+	}
+
+	/**
+	 * Writes the message as one frame like {@link #encode(Message, ByteBuffer, FrameCompressor, int)}
+	 * on a stream unless the stream id is {@link #NO_STREAM}.
+	 *
+	 * @param streamId      the stream the frame belongs to
+	 * @param correlationId id the peer echoes in its answer
+	 * @throws BufferOverflowException if the frame does not fit, nothing is written in that case
+	 */
+	public static void encode(final Message msg, final ByteBuffer dst, final FrameCompressor compressor,
+			final int streamId, final int correlationId) {
+		if (compressor != null && msg.getMessageType() == MessageType.CHAT_MESSAGE) {
+			final Message.ChatMessage chat = (Message.ChatMessage) msg;
+			final int textLength = chat.getMessage() == null ? 0 : utf8Length(chat.getMessage());
+			if (textLength >= compressor.threshold()
+					&& encodeDeflated(chat, textLength, dst, compressor, streamId, correlationId)) {
+				return;
+			}
+		}
+		encode(msg, dst, 0, streamId, correlationId);
+	}
+
+	private static boolean encodeDeflated(final Message.ChatMessage chat, final int textLength, final ByteBuffer dst,
+			final FrameCompressor compressor, final int streamId, final int correlationId) {
+		final int prefix = prefixSize(streamId, correlationId);
+		final int fixed = prefix + 1 + 4 + 4;
+		if (dst.remaining() < HEADER_SIZE + fixed) {
+			throw new BufferOverflowException();
+		}
+		final ByteBuffer raw = compressor.scratch(4 + textLength);
+		putString(raw, chat.getMessage());
+		raw.flip().position(4);
+		final int start = dst.position();
+		dst.position(start + HEADER_SIZE);
+		putPrefix(dst, streamId, correlationId);
+		dst.put((byte) MessageType.CHAT_MESSAGE.msgType());
+		dst.putInt(chat.getRecipient().id());
+		dst.putInt(textLength);
+		if (!compressor.deflate(raw, dst)) {
+			dst.position(start);
+			return false;
+		}
+		dst.putInt(start, header(FLAG_DEFLATE | prefixFlags(streamId, correlationId), dst.position() - start - HEADER_SIZE));
+		return true;
+	}
+
+	/**
+	 * Writes the message as one frame with the given flag bits in its header.
+	 *
+	 * @throws BufferOverflowException if the frame does not fit, nothing is written in that case
+	 */
+	public static void encode(final Message msg, final ByteBuffer dst, final int flags) {
+		encode(msg, dst, flags, NO_STREAM, NO_CORRELATION);
+	}
+
+	private static void encode(final Message msg, final ByteBuffer dst, final int flags, final int streamId,
+			final int correlationId) {
+		final int length = bodySize(msg) + prefixSize(streamId, correlationId);
+		if (length > MAX_FRAME_LENGTH) {
+			throw new IllegalArgumentException("Message too large for a frame: " + length + " bytes");
+		}
+		if (dst.remaining() < HEADER_SIZE + length) {
+			throw new BufferOverflowException();
+		}
+		dst.putInt(header(flags | prefixFlags(streamId, correlationId), length));
+		putPrefix(dst, streamId, correlationId);
+		dst.put((byte) msg.getMessageType().msgType());
+		switch (msg.getMessageType()) {
+		case ERROR_RESPONSE:
+			putString(dst, ((Message.ErrorResponse) msg).getErrorMessage());
+			break;
+		case REGISTER_REQUEST:
+			final Message.RegisterRequest reg = (Message.RegisterRequest) msg;
+			dst.putInt(reg.getUserId().id());
+			putString(dst, reg.getUDPAddress().getHostAddress());
+			dst.putInt(reg.getUDPPort());
+			break;
+		case REGISTER_RESPONSE:
+			break;
+		case CHAT_MESSAGE:
+			final Message.ChatMessage chat = (Message.ChatMessage) msg;
+			dst.putInt(chat.getRecipient().id());
+			putString(dst, chat.getMessage());
+			break;
+		case CAPABILITIES:
+			dst.putInt(((Message.Capabilities) msg).getBits());
+			break;
+		case WINDOW_UPDATE:
+			dst.putInt(((Message.WindowUpdate) msg).getIncrement());
+			break;
+		default:
+			throw new IllegalArgumentException("No frame encoding for " + msg.getMessageType());
+		}
+	}
+
+	private static int prefixSize(final int streamId, final int correlationId) {
+		return (streamId == NO_STREAM ? 0 : STREAM_ID_SIZE) + (correlationId == NO_CORRELATION ? 0 : CORRELATION_SIZE);
+	}
+
+	private static int prefixFlags(final int streamId, final int correlationId) {
+		return (streamId == NO_STREAM ? 0 : FLAG_STREAM) | (correlationId == NO_CORRELATION ? 0 : FLAG_CORRELATED);
+	}
+
+	private static void putPrefix(final ByteBuffer dst, final int streamId, final int correlationId) {
+		if (streamId != NO_STREAM) {
+			dst.putInt(streamId);
+		}
+		if (correlationId != NO_CORRELATION) {
+			dst.putInt(correlationId);
+		}
+	}
+
+	/**
+	 * Builds a frame header word.
+	 */
+	public static int header(final int flags, final int length) {
+		return FRAME_MARKER | (flags & FLAGS_MASK) << FLAGS_SHIFT | length;
+	}
+
+	/**
+	 * Decodes an uncompressed frame body.
+	 *
+	 * @param body buffer positioned at the type code, limited to the end of the frame; the
+	 *             position is moved past the message
+	 * @throws IllegalStateException if the type is unknown or the body is malformed
+	 */
+	public static Message decode(final ByteBuffer body) throws IOException {
+		return decode(body, 0, null);
+	}
+
+	/**
+	 * Decodes a frame body.
+	 *
+	 * @param body       buffer positioned at the type code, limited to the end of the frame; the
+	 *                   position is moved past the message
+	 * @param flags      the flags from the frame header
+	 * @param compressor the connection's compression state, or null if not negotiated
+	 * @throws IllegalStateException if the type is unknown, the body is malformed or compressed
+	 *                               without negotiated compression
+	 */
+	public static Message decode(final ByteBuffer body, final int flags, final FrameCompressor compressor) throws IOException {
+		try {
+			final int code = body.get();
+			final MessageType type = MessageType.fromInt(code);
+			if (type == null) {
+				throw new IllegalStateException("Unknown message type " + code);
+			}
+			switch (type) {
+			case ERROR_RESPONSE:
+				return new Message.ErrorResponse(getString(body));
+			case REGISTER_REQUEST:
+				final UserId id = new UserId(body.getInt());
+				final InetAddress address = InetAddress.getByName(getString(body));
+				return new Message.RegisterRequest(id, address, body.getInt());
+			case REGISTER_RESPONSE:
+				return new Message.RegisterResponse();
+			case CHAT_MESSAGE:
+				final UserId recipient = new UserId(body.getInt());
+				if ((flags & FLAG_DEFLATE) != 0) {
+					return new Message.ChatMessage(recipient, inflateString(body, compressor));
+				}
+				return new Message.ChatMessage(recipient, getString(body));
+			case CAPABILITIES:
+				return new Message.Capabilities(body.getInt());
+			case WINDOW_UPDATE:
+				return new Message.WindowUpdate(body.getInt());
+			default:
+				throw new IllegalStateException("No frame decoding for " + type);
+			}
+		} catch (BufferUnderflowException | IllegalArgumentException e) {
+			throw new IllegalStateException("Malformed frame: " + e.getMessage());
+		}
+	}
+
+	private static String inflateString(final ByteBuffer body, final FrameCompressor compressor) {
+		if (compressor == null) {
+			throw new IllegalStateException("Compressed frame on a connection without compression");
+		}
+		final int length = body.getInt();
+		if (length < 0 || length > MAX_FRAME_LENGTH * 16) {
+			throw new IllegalStateException("Invalid uncompressed length " + length);
+		}
+		final ByteBuffer raw = compressor.scratch(length);
+		raw.limit(length);
+		try {
+			compressor.inflate(body, raw);
+		} catch (DataFormatException e) {
+			throw new IllegalStateException("Malformed compressed frame: " + e.getMessage());
+		}
+		return new String(raw.array(), raw.arrayOffset(), length, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Reads the body of a frame from a blocking stream after its header word was read.
+	 *
+	 * @param in      the stream, positioned after the header
+	 * @param header  the header word
+	 * @param scratch buffer to read into, may be null
+	 * @return a frame over {@code scratch}, or over a new buffer if {@code scratch} was too small
+	 */
+	public static Frame readFrame(final DataInputStream in, final int header, final ByteBuffer scratch) throws IOException {
+		final int length = frameLength(header);
+		ByteBuffer body = scratch;
+		if (body == null || !body.hasArray() || body.capacity() < length) {
+			body = ByteBuffer.allocate(Math.max(length, 256));
+		}
+		body.clear();
+		in.readFully(body.array(), body.arrayOffset(), length);
+		body.limit(length);
+		return new Frame(header, body);
+	}
+
+	private static int bodySize(final Message msg) {
+		switch (msg.getMessageType()) {
+		case ERROR_RESPONSE:
+			return 1 + stringSize(((Message.ErrorResponse) msg).getErrorMessage());
+		case REGISTER_REQUEST:
+			final Message.RegisterRequest reg = (Message.RegisterRequest) msg;
+			return 1 + 4 + stringSize(reg.getUDPAddress().getHostAddress()) + 4;
+		case REGISTER_RESPONSE:
+			return 1;
+		case CHAT_MESSAGE:
+			return 1 + 4 + stringSize(((Message.ChatMessage) msg).getMessage());
+		case CAPABILITIES:
+		case WINDOW_UPDATE:
+			return 1 + 4;
+		default:
+			throw new IllegalArgumentException("No frame encoding for " + msg.getMessageType());
+		}
+	}
+
+	private static int stringSize(final String s) {
+		return 4 + (s == null ? 0 : utf8Length(s));
+	}
+
+	/**
+	 * UTF-8 length without encoding the string. Unpaired surrogates count as one byte, they
+	 * are written as '?' like {@link String#getBytes} does.
+	 */
+	static int utf8Length(final String s) {
+		final int n = s.length();
+		int length = 0;
+		for (int i = 0; i < n; i++) {
+			final char c = s.charAt(i);
+			if (c < 0x80) {
+				length += 1;
+			} else if (c < 0x800) {
+				length += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else if (Character.isSurrogate(c)) {
+				length += 1;
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Encodes the string straight into the buffer, without an intermediate byte array.
+	 */
+	static void putString(final ByteBuffer dst, final String s) {
+		if (s == null) {
+			dst.putInt(0);
+			return;
+		}
+		dst.putInt(utf8Length(s));
+		final int n = s.length();
+		for (int i = 0; i < n; i++) {
+			final char c = s.charAt(i);
+			if (c < 0x80) {
+				dst.put((byte) c);
+			} else if (c < 0x800) {
+				dst.put((byte) (0xC0 | c >> 6));
+				dst.put((byte) (0x80 | c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+				final int cp = Character.toCodePoint(c, s.charAt(++i));
+				dst.put((byte) (0xF0 | cp >> 18));
+				dst.put((byte) (0x80 | cp >> 12 & 0x3F));
+				dst.put((byte) (0x80 | cp >> 6 & 0x3F));
+				dst.put((byte) (0x80 | cp & 0x3F));
+			} else if (Character.isSurrogate(c)) {
+				dst.put((byte) '?');
+			} else {
+				dst.put((byte) (0xE0 | c >> 12));
+				dst.put((byte) (0x80 | c >> 6 & 0x3F));
+				dst.put((byte) (0x80 | c & 0x3F));
+			}
+		}
+	}
+
+	static String getString(final ByteBuffer src) {
+		final int length = src.getInt();
+		if (length < 0 || length > src.remaining()) {
+			throw new BufferUnderflowException();
+		}
+		final String s;
+		if (src.hasArray()) {
+			s = new String(src.array(), src.arrayOffset() + src.position(), length, StandardCharsets.UTF_8);
+		} else {
+			final byte[] bytes = new byte[length];
+			src.get(src.position(), bytes);
+			s = new String(bytes, StandardCharsets.UTF_8);
+		}
+		src.position(src.position() + length);
+		return s;
+	}
+
+	/**
+	 * A received frame. The body is a view of the receive buffer and is only valid until that
+	 * buffer is reused; {@link #message()} decodes it on first use and keeps the result.
+	 */
+	public static final class Frame {
+
+		private final int header;
+		private final ByteBuffer body;
+		private final int streamId;
+		private final int correlationId;
+		private Message message;
+
+		Frame(final int header, final ByteBuffer body) {
+			this.header = header;
+			final int flags = frameFlags(header);
+			final boolean stream = (flags & FLAG_STREAM) != 0;
+			final boolean correlated = (flags & FLAG_CORRELATED) != 0;
+			if (body.remaining() <= (stream ? STREAM_ID_SIZE : 0) + (correlated ? CORRELATION_SIZE : 0)) {
+				throw new IllegalStateException("Malformed frame: no room for the stream or correlation id");
+			}
+			this.streamId = stream ? body.getInt() : NO_STREAM;
+			this.correlationId = correlated ? body.getInt() : NO_CORRELATION;
+			this.body = body;
+		}
+
+		/**
+		 * @return the stream id of the frame, or {@link MessageCodec#NO_STREAM}
+		 */
+		public int streamId() {
+			return streamId;
+		}
+
+		/**
+		 * @return the correlation id of the frame, or {@link MessageCodec#NO_CORRELATION}
+		 */
+		public int correlationId() {
+			return correlationId;
+		}
+
+		public int flags() {
+			return frameFlags(header);
+		}
+
+		/**
+		 * @return the body length including stream and correlation id, the amount a stream
+		 *         frame takes from the stream's window
+		 */
+		public int length() {
+			return frameLength(header);
+		}
+
+		/**
+		 * @return the message type, read without decoding the payload
+		 */
+		public MessageType type() {
+			return MessageType.fromInt(body.get(body.position()));
+		}
+
+		/**
+		 * Reads the user a message is routed by without decoding the rest of the body: the
+		 * recipient of a chat message or the user of a registration. Both are the int following
+		 * the type code.
+		 *
+		 * @throws IllegalStateException if the frame is of another type or too short
+		 */
+		public UserId recipient() {
+			final MessageType type = type();
+			if (type != MessageType.CHAT_MESSAGE && type != MessageType.REGISTER_REQUEST) {
+				throw new IllegalStateException("Frame has no recipient: " + type);
+			}
+			if (body.remaining() < RECIPIENT_OFFSET + Integer.BYTES) {
+				throw new IllegalStateException("Malformed frame: no room for the recipient");
+			}
+			return new UserId(body.getInt(body.position() + RECIPIENT_OFFSET));
+		}
+
+		/**
+		 * Writes the frame unchanged except for its stream id, to relay it over another connection
+		 * without decoding it. Needs {@code HEADER_SIZE + length()} bytes.
+		 *
+		 * @param streamId the stream id on the other connection
+		 * @throws IllegalStateException if the frame is not a stream frame
+		 */
+		public void relay(final ByteBuffer dst, final int streamId) {
+			if (this.streamId == NO_STREAM || streamId == NO_STREAM) {
+				throw new IllegalStateException("Only stream frames can be relayed");
+			}
+			dst.putInt(header);
+			dst.putInt(streamId);
+			if ((flags() & FLAG_CORRELATED) != 0) {
+				dst.putInt(correlationId);
+			}
+			dst.put(body.duplicate());
+		}
+
+		/**
+		 * @return the body, positioned at the type code; shares the frame's content
+		 */
+		public ByteBuffer body() {
+			return body.duplicate();
+		}
+
+		public Message message() throws IOException {
+			return message(null);
+		}
+
+		/**
+		 * @param compressor the connection's compression state, needed for compressed frames
+		 */
+		public Message message(final FrameCompressor compressor) throws IOException {
+			if (message == null) {
+				message = decode(body.duplicate(), flags(), compressor);
+			}
+			return message;
+		}
+	}
+
+	/**
+	 * Cuts frames out of the bytes read from a non-blocking transport. The caller reads into
+	 * its buffer, flips it and calls {@link #next(ByteBuffer)} until it returns null, then
+	 * compacts the buffer and reads again. Frames larger than the caller's buffer are
+	 * assembled in a buffer of their own.
+	 */
+	public static final class FrameReader {
+
+		private final int maxFrameLength;
+		private int header;
+		private ByteBuffer assembly;
+
+		/**
+		 * @param maxFrameLength longest body accepted, at most {@link MessageCodec#MAX_FRAME_LENGTH}
+		 */
+		public FrameReader(final int maxFrameLength) {
+			this.maxFrameLength = Math.min(maxFrameLength, MAX_FRAME_LENGTH);
+		}
+
+		/**
+		 * Consumes the next complete frame from the buffer.
+		 *
+		 * @param src buffer in read mode
+		 * @return the frame, or null if more bytes are needed; the bytes of an incomplete frame
+		 *         are left in {@code src} unless the frame is assembled separately
+		 * @throws IllegalStateException if the bytes are not a frame or the frame is too long
+		 */
+		public Frame next(final ByteBuffer src) {
+			if (assembly != null) {
+				return continueAssembly(src);
+			}
+			if (src.remaining() < HEADER_SIZE) {
+				return null;
+			}
+			final int word = src.getInt(src.position());
+			if (!isFrameHeader(word)) {
+				throw new IllegalStateException("Not a frame header: " + word);
+			}
+			final int length = frameLength(word);
+			if (length > maxFrameLength || length == 0) {
+				throw new IllegalStateException("Invalid frame length " + length);
+			}
+			if (src.remaining() >= HEADER_SIZE + length) {
+				src.position(src.position() + HEADER_SIZE);
+				final ByteBuffer body = src.slice();
+				body.limit(length);
+				src.position(src.position() + length);
+				return new Frame(word, body);
+			}
+			if (src.capacity() < HEADER_SIZE + length) {
+				// Will never fit into the caller's buffer
+				src.position(src.position() + HEADER_SIZE);
+				header = word;
+				assembly = ByteBuffer.allocate(length);
+				return continueAssembly(src);
+			}
+			return null;
+		}
+
+		private Frame continueAssembly(final ByteBuffer src) {
+			final int n = Math.min(src.remaining(), assembly.remaining());
+			assembly.put(assembly.position(), src, src.position(), n);
+			assembly.position(assembly.position() + n);
+			src.position(src.position() + n);
+			if (assembly.hasRemaining()) {
+				return null;
+			}
+			final ByteBuffer body = assembly.flip();
+			assembly = null;
+			return new Frame(header, body);
+		}
+	}
+}
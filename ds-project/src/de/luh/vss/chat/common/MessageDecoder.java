@@ -0,0 +1,16 @@
+package de.luh.vss.chat.common;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+
+/**
+ * Builds a message from the stream after its type code has been read. Implementations are
+ * usually constructor references such as {@code Message.ChatMessage::new}. Only used for the
+ * internal decoder table of {@link MessageType}.
+ */
+@FunctionalInterface
+interface MessageDecoder {
+
+	Message decode(DataInputStream in) throws IOException;
+
+}
@@ -1,35 +1,36 @@
 package de.luh.vss.chat.common;
 
 import java.io.DataInputStream;
-import java.lang.reflect.Constructor;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.IOException;
 
 public enum MessageType {
-	ERROR_RESPONSE(0, Message.ErrorResponse.class), REGISTER_REQUEST(1, Message.RegisterRequest.class),
-	REGISTER_RESPONSE(2, Message.RegisterResponse.class), CHAT_MESSAGE(4, Message.ChatMessage.class);
-
-	private final int msgType;
-
-	private Constructor<? extends Message> constr;
-
-	private static final Map<Integer, MessageType> lookup = new HashMap<Integer, MessageType>();
+	ERROR_RESPONSE(0, Message.ErrorResponse::new), REGISTER_REQUEST(1, Message.RegisterRequest::new),
+	REGISTER_RESPONSE(2, Message.RegisterResponse::new), CHAT_MESSAGE(4, Message.ChatMessage::new),
+	CAPABILITIES(5, Message.Capabilities::new), WINDOW_UPDATE(6, Message.WindowUpdate::new);
+
+	/**
+	 * Type codes are dense and small, so both lookups are plain array reads indexed by the code.
+	 */
+	public static final int MAX_TYPE_CODE = 63;
+
+	// Internal dispatch tables, filled once from the constants above. A new message type is added
+	// as a constant with its code and decoder, so getMessageType() and encoding know it as well.
+	private static final MessageType[] types = new MessageType[MAX_TYPE_CODE + 1];
+	private static final MessageDecoder[] decoders = new MessageDecoder[MAX_TYPE_CODE + 1];
 	static {
 		for (final MessageType mt : MessageType.values()) {
-			lookup.put(mt.msgType, mt);
+			types[mt.msgType] = mt;
+			decoders[mt.msgType] = mt.decoder;
 		}
 	}
 
-	private MessageType(int msgType, final Class<? extends Message> cls) {
+	private final int msgType;
+
+	private final MessageDecoder decoder;
+
+	private MessageType(int msgType, final MessageDecoder decoder) {
 		this.msgType = msgType;
-		try {
-			this.constr = cls.getConstructor(DataInputStream.class);
-		} catch (NoSuchMethodException | SecurityException e) {
-			System.err.println("Error while registering message type. "
-					+ "Constructor from DataInputStream not present or accessible");
-			e.printStackTrace();
-			System.exit(-1);
-		}
+		this.decoder = decoder;
 	}
 
 	int msgType() {
@@ -37,15 +38,15 @@ public enum MessageType {
 	}
 
 	public static MessageType fromInt(final int val) {
-		return lookup.get(val);
+		return val >= 0 && val < types.length ? types[val] : null;
 	}
 
-	public static Message fromInt(final int val, final DataInputStream in) throws ReflectiveOperationException {
-		final MessageType mt = fromInt(val);
-		if (mt == null) {
+	public static Message fromInt(final int val, final DataInputStream in) throws IOException {
+		final MessageDecoder decoder = val >= 0 && val < decoders.length ? decoders[val] : null;
+		if (decoder == null) {
 			throw new IllegalStateException("Unknown message type " + val);
 		}
-		return mt.constr.newInstance(in);
+		return decoder.decode(in);
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,301 @@
+package de.luh.vss.chat.common;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.function.LongSupplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Registry that exposes the counters, gauges and {@link LatencyHistogram}s of a process via JMX
+ * and as Prometheus text on a local HTTP endpoint.
+ *
+ * The registry only reads: components keep their own {@link java.util.concurrent.atomic.LongAdder}s
+ * and histograms on the hot path and register a view of them once, so recording stays lock-free
+ * and allocation-free. Values are collected when JMX or the endpoint asks for them.
+ *
+ * Histograms are exported as Prometheus summaries with the quantiles 0.5, 0.99 and 0.999.
+ * Labels are given as name/value pairs, e.g. {@code "backend", "servernode1:4444"}.
+ */
+public final class Metrics {
+
+	private static final double[] QUANTILES = { 0.5, 0.99, 0.999 };
+	private static final String[] QUANTILE_LABELS = { "0.5", "0.99", "0.999" };
+	private static final String[] QUANTILE_NAMES = { "p50", "p99", "p999" };
+
+	private final String component;
+	private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+	/**
+	 * @param component name of the process, used in the JMX object name
+	 */
+	public Metrics(final String component) {
+		this.component = component;
+	}
+
+	/**
+	 * Registers a monotonically increasing value.
+	 *
+	 * @param name   metric name, ending in {@code _total} by convention
+	 * @param help   description
+	 * @param value  current value
+	 * @param labels label name/value pairs
+	 */
+	public void counter(final String name, final String help, final LongSupplier value, final String... labels) {
+		family(name, help, "counter").series.put(labels(labels), value);
+	}
+
+	/**
+	 * Registers a value that can go up and down.
+	 *
+	 * @param name   metric name
+	 * @param help   description
+	 * @param value  current value
+	 * @param labels label name/value pairs
+	 */
+	public void gauge(final String name, final String help, final LongSupplier value, final String... labels) {
+		family(name, help, "gauge").series.put(labels(labels), value);
+	}
+
+	/**
+	 * Registers a histogram. It must not be reset, otherwise its count and sum go backwards.
+	 *
+	 * @param name      metric name including the unit, e.g. {@code _microseconds}
+	 * @param help      description
+	 * @param histogram the histogram
+	 * @param labels    label name/value pairs
+	 */
+	public void histogram(final String name, final String help, final LatencyHistogram histogram, final String... labels) {
+		family(name, help, "summary").series.put(labels(labels), histogram);
+	}
+
+	/**
+	 * Removes every series with exactly these labels, e.g. those of a backend that went away.
+	 *
+	 * @param labels label name/value pairs
+	 */
+	public void remove(final String... labels) {
+		final String key = labels(labels);
+		for (final Family family : families.values()) {
+			family.series.remove(key);
+		}
+	}
+
+	private Family family(final String name, final String help, final String type) {
+		final Family family = families.computeIfAbsent(name, n -> new Family(help, type));
+		if (!family.type.equals(type)) {
+			throw new IllegalArgumentException(name + " is already registered as " + family.type);
+		}
+		return family;
+	}
+
+	private static String labels(final String... labels) {
+		if (labels.length % 2 != 0) {
+			throw new IllegalArgumentException("Labels must be name/value pairs");
+		}
+		if (labels.length == 0) {
+			return "";
+		}
+		final StringBuilder sb = new StringBuilder("{");
+		for (int i = 0; i < labels.length; i += 2) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append(labels[i]).append("=\"");
+			for (final char c : labels[i + 1].toCharArray()) {
+				if (c == '\\' || c == '"') {
+					sb.append('\\').append(c);
+				} else if (c == '\n') {
+					sb.append("\\n");
+				} else {
+					sb.append(c);
+				}
+			}
+			sb.append('"');
+		}
+		return sb.append('}').toString();
+	}
+
+	/**
+	 * Renders all metrics in the Prometheus text exposition format.
+	 *
+	 * @return the current values
+	 */
+	public String scrape() {
+		final StringBuilder sb = new StringBuilder(4096);
+		for (final Map.Entry<String, Family> entry : families.entrySet()) {
+			final String name = entry.getKey();
+			final Family family = entry.getValue();
+			if (family.series.isEmpty()) {
+				continue;
+			}
+			sb.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+			sb.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+			for (final Map.Entry<String, Object> series : family.series.entrySet()) {
+				final String labels = series.getKey();
+				if (series.getValue() instanceof LatencyHistogram) {
+					final LatencyHistogram histogram = (LatencyHistogram) series.getValue();
+					for (int q = 0; q < QUANTILES.length; q++) {
+						final String quantile = "quantile=\"" + QUANTILE_LABELS[q] + "\"";
+						sb.append(name).append(labels.isEmpty() ? "{" + quantile + "}"
+								: labels.substring(0, labels.length() - 1) + "," + quantile + "}");
+						sb.append(' ').append(histogram.percentile(QUANTILES[q])).append('\n');
+					}
+					sb.append(name).append("_sum").append(labels).append(' ').append(histogram.sum()).append('\n');
+					sb.append(name).append("_count").append(labels).append(' ').append(histogram.count()).append('\n');
+				} else {
+					sb.append(name).append(labels).append(' ')
+							.append(((LongSupplier) series.getValue()).getAsLong()).append('\n');
+				}
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Flattens all metrics into named values, histograms into count, mean and quantiles.
+	 */
+	private Map<String, Number> snapshot() {
+		final Map<String, Number> values = new LinkedHashMap<>();
+		for (final Map.Entry<String, Family> entry : families.entrySet()) {
+			for (final Map.Entry<String, Object> series : entry.getValue().series.entrySet()) {
+				final String name = entry.getKey() + series.getKey();
+				if (series.getValue() instanceof LatencyHistogram) {
+					final LatencyHistogram histogram = (LatencyHistogram) series.getValue();
+					values.put(name + " count", histogram.count());
+					values.put(name + " mean", histogram.mean());
+					for (int q = 0; q < QUANTILES.length; q++) {
+						values.put(name + " " + QUANTILE_NAMES[q], histogram.percentile(QUANTILES[q]));
+					}
+				} else {
+					values.put(name, ((LongSupplier) series.getValue()).getAsLong());
+				}
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Registers the metrics as attributes of the MBean
+	 * {@code de.luh.vss.chat:type=Metrics,name=<component>} in the platform MBean server.
+	 *
+	 * @throws JMException if the MBean cannot be registered
+	 */
+	public void registerMBean() throws JMException {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(),
+				new ObjectName("de.luh.vss.chat:type=Metrics,name=" + ObjectName.quote(component)));
+	}
+
+	/**
+	 * Serves {@link #scrape()} on {@code http://host:port/metrics} from a single background thread.
+	 *
+	 * @param host address to bind, e.g. 127.0.0.1 to keep the endpoint local
+	 * @param port port to bind
+	 * @throws IOException if the port cannot be bound
+	 */
+	public void serve(final String host, final int port) throws IOException {
+		final HttpServer server = HttpServer.create(new InetSocketAddress(host, port), 0);
+		server.createContext("/metrics", exchange -> {
+			try (exchange) {
+				final byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+				exchange.sendResponseHeaders(200, body.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+			}
+		});
+		server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+			final Thread t = new Thread(r, "metrics-http");
+			t.setDaemon(true);
+			return t;
+		}));
+		server.start();
+	}
+
+	private static final class Family {
+		private final String help;
+		private final String type;
+		private final Map<String, Object> series = new ConcurrentSkipListMap<>(); // labels -> LongSupplier or LatencyHistogram
+
+		Family(final String help, final String type) {
+			this.help = help;
+			this.type = type;
+		}
+	}
+
+	/**
+	 * JMX view of the registry. The attributes follow the registered metrics, so the MBean info is
+	 * built on every request.
+	 */
+	private final class MetricsMBean implements DynamicMBean {
+
+		@Override
+		public Object getAttribute(final String attribute) throws AttributeNotFoundException {
+			final Number value = snapshot().get(attribute);
+			if (value == null) {
+				throw new AttributeNotFoundException(attribute);
+			}
+			return value;
+		}
+
+		@Override
+		public AttributeList getAttributes(final String[] attributes) {
+			final Map<String, Number> values = snapshot();
+			final AttributeList list = new AttributeList();
+			for (final String attribute : attributes) {
+				final Number value = values.get(attribute);
+				if (value != null) {
+					list.add(new Attribute(attribute, value));
+				}
+			}
+			return list;
+		}
+
+		@Override
+		public void setAttribute(final Attribute attribute) throws AttributeNotFoundException {
+			throw new AttributeNotFoundException("Metrics are read-only");
+		}
+
+		@Override
+		public AttributeList setAttributes(final AttributeList attributes) {
+			return new AttributeList();
+		}
+
+		@Override
+		public Object invoke(final String actionName, final Object[] params, final String[] signature)
+				throws ReflectionException {
+			throw new ReflectionException(new NoSuchMethodException(actionName), "Metrics have no operations");
+		}
+
+		@Override
+		public MBeanInfo getMBeanInfo() {
+			final List<MBeanAttributeInfo> attributes = new ArrayList<>();
+			for (final Map.Entry<String, Number> value : snapshot().entrySet()) {
+				attributes.add(new MBeanAttributeInfo(value.getKey(), value.getValue().getClass().getName(),
+						value.getKey(), true, false, false));
+			}
+			return new MBeanInfo(Metrics.class.getName(), "Metrics of the " + component,
+					attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+		}
+	}
+}
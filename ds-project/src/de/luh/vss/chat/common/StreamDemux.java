@@ -0,0 +1,246 @@
+package de.luh.vss.chat.common;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.function.UnaryOperator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.luh.vss.chat.common.Message.ErrorResponse;
+import de.luh.vss.chat.common.Message.WindowUpdate;
+import de.luh.vss.chat.common.MessageCodec.Frame;
+
+/**
+ * Receiving side of the streams of one connection (see {@link MessageCodec#FLAG_STREAM}). The
+ * connection's reader passes every stream frame to {@link #dispatch}; requests are queued per
+ * stream and each stream with queued requests is drained by one task at a time, so requests of a
+ * stream are answered in order while streams proceed independently of each other.
+ *
+ * Fairness comes from two limits: a stream never holds more than
+ * {@link MessageCodec#INITIAL_STREAM_WINDOW} bytes in its queue, because its credit is only
+ * returned after the requests are handled, and a drain task hands its thread back after
+ * {@link #DRAIN_BATCH} requests, so a busy stream queues up behind the others instead of
+ * occupying a thread.
+ *
+ * Responses and window updates are written to the connection's output while holding its lock;
+ * other writers on the same connection must synchronize on the output stream as well.
+ */
+public final class StreamDemux {
+
+	/**
+	 * Runs drain tasks, e.g. a bounded executor.
+	 */
+	public interface Scheduler {
+		/**
+		 * @return false if the task was rejected because the scheduler is saturated
+		 */
+		boolean execute(Runnable task);
+	}
+
+	private static final Logger logger = Logger.getLogger(StreamDemux.class.getName());
+	private static final int DRAIN_BATCH = 16;
+
+	private final Scheduler scheduler;
+	private final UnaryOperator<Message> handler;
+	private final DataOutputStream out;
+	private final int maxStreams;
+	private final Map<Integer, Stream> streams = new HashMap<>(); // guarded by this
+	private volatile boolean closed;
+
+	/**
+	 * @param scheduler  runs the drain tasks
+	 * @param handler    answers a request; a null response is not sent, the credit is returned anyway
+	 * @param out        the connection's buffered output
+	 * @param maxStreams streams with queued or unanswered requests allowed at once; frames opening
+	 *                   further streams are answered with an error
+	 */
+	public StreamDemux(final Scheduler scheduler, final UnaryOperator<Message> handler, final DataOutputStream out,
+			final int maxStreams) {
+		this.scheduler = scheduler;
+		this.handler = handler;
+		this.out = out;
+		this.maxStreams = maxStreams;
+	}
+
+	/**
+	 * Queues the request carried by a stream frame. Called by the connection's reader only; the
+	 * frame is decoded right away, so its buffer may be reused afterwards.
+	 *
+	 * @param frame a frame with a stream id
+	 * @throws IllegalStateException if the frame cannot be decoded
+	 */
+	public void dispatch(final Frame frame) throws IOException {
+		final Request request = new Request(frame.correlationId(), frame.message(), frame.length());
+		if (request.msg.getMessageType() == MessageType.WINDOW_UPDATE) {
+			// This side never sends stream requests, so there is no window to grow
+			return;
+		}
+		final Stream stream;
+		final String rejection;
+		final boolean schedule;
+		synchronized (this) {
+			Stream existing = streams.get(frame.streamId());
+			if (existing == null && streams.size() >= maxStreams) {
+				rejection = "Too many streams";
+			} else if (existing != null && existing.window <= 0) {
+				rejection = "Stream window exceeded";
+			} else {
+				rejection = null;
+			}
+			if (rejection != null) {
+				stream = null;
+				schedule = false;
+			} else {
+				if (existing == null) {
+					existing = new Stream(frame.streamId());
+					streams.put(existing.id, existing);
+				}
+				stream = existing;
+				stream.window -= request.length;
+				stream.queue.add(request);
+				schedule = !stream.scheduled;
+				stream.scheduled = true;
+			}
+		}
+		if (rejection != null) {
+			reply(frame.streamId(), null, request, new ErrorResponse(rejection), new ByteBuffer[1]);
+			out.flush();
+			return;
+		}
+		if (schedule && !scheduler.execute(() -> drain(stream))) {
+			rejectQueued(stream);
+		}
+	}
+
+	/**
+	 * Stops answering; requests still queued are dropped. Called when the connection closes.
+	 */
+	public void close() {
+		closed = true;
+	}
+
+	/**
+	 * Answers up to {@link #DRAIN_BATCH} requests of the stream, then flushes and schedules itself
+	 * again if more are queued. Runs in the calling thread if the scheduler is saturated.
+	 */
+	private void drain(final Stream stream) {
+		final ByteBuffer[] buffer = new ByteBuffer[1];
+		try {
+			while (true) {
+				for (int i = 0; i < DRAIN_BATCH; i++) {
+					final Request request = next(stream);
+					if (request == null) {
+						out.flush();
+						return;
+					}
+					reply(stream.id, stream, request, handler.apply(request.msg), buffer);
+				}
+				out.flush();
+				synchronized (this) {
+					if (stream.queue.isEmpty()) {
+						finish(stream);
+						return;
+					}
+				}
+				if (scheduler.execute(() -> drain(stream))) {
+					return;
+				}
+			}
+		} catch (IOException e) {
+			closed = true;
+			if (logger.isLoggable(Level.FINE)) {
+				logger.fine("Stream " + stream.id + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * @return the next request of the stream, or null after unscheduling the idle stream
+	 */
+	private synchronized Request next(final Stream stream) {
+		final Request request = closed ? null : stream.queue.poll();
+		if (request == null) {
+			finish(stream);
+		}
+		return request;
+	}
+
+	private void finish(final Stream stream) {
+		stream.scheduled = false;
+		if (closed) {
+			stream.queue.clear();
+		}
+		if (stream.queue.isEmpty() && stream.window == MessageCodec.INITIAL_STREAM_WINDOW) {
+			streams.remove(stream.id);
+		}
+	}
+
+	private void rejectQueued(final Stream stream) throws IOException {
+		logger.warning("Server overloaded, stream " + stream.id + " rejected");
+		final ByteBuffer[] buffer = new ByteBuffer[1];
+		Request request;
+		while ((request = next(stream)) != null) {
+			reply(stream.id, stream, request, new ErrorResponse("Server overloaded"), buffer);
+		}
+		out.flush();
+	}
+
+	/**
+	 * Writes the response, if any, and returns the request's credit with one write.
+	 *
+	 * @param stream the stream the request was charged to, null if it was rejected before
+	 * @param buffer holder of the caller's encode buffer, replaced by a larger one when needed
+	 */
+	private void reply(final int streamId, final Stream stream, final Request request, final Message response,
+			final ByteBuffer[] buffer) throws IOException {
+		final WindowUpdate update = new WindowUpdate(request.length);
+		int size = MessageCodec.encodedSize(update) + MessageCodec.STREAM_ID_SIZE;
+		if (response != null) {
+			size += MessageCodec.encodedSize(response) + MessageCodec.STREAM_ID_SIZE + MessageCodec.CORRELATION_SIZE;
+		}
+		if (buffer[0] == null || buffer[0].capacity() < size) {
+			buffer[0] = ByteBuffer.allocate(Math.max(size, 256));
+		}
+		final ByteBuffer dst = buffer[0].clear();
+		if (response != null) {
+			MessageCodec.encode(response, dst, null, streamId, request.correlationId);
+		}
+		MessageCodec.encode(update, dst, null, streamId, MessageCodec.NO_CORRELATION);
+		if (stream != null) {
+			synchronized (this) {
+				stream.window += request.length;
+			}
+		}
+		synchronized (out) {
+			out.write(dst.array(), 0, dst.position());
+		}
+	}
+
+	private static final class Stream {
+		private final int id;
+		private final Queue<Request> queue = new ArrayDeque<>();
+		private int window = MessageCodec.INITIAL_STREAM_WINDOW; // credit the peer has left
+		private boolean scheduled; // a drain task is running or submitted
+
+		Stream(final int id) {
+			this.id = id;
+		}
+	}
+
+	private static final class Request {
+		private final int correlationId;
+		private final Message msg;
+		private final int length;
+
+		Request(final int correlationId, final Message msg, final int length) {
+			this.correlationId = correlationId;
+			this.msg = msg;
+			this.length = length;
+		}
+	}
+}
@@ -0,0 +1,311 @@
+package de.luh.vss.chat.loadbalancer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hält pro Backend-Server einen Vorrat an bereits aufgebauten Verbindungen, damit TCP-Handshake
+ * und Namensauflösung nicht im Pfad einer Anfrage liegen. Entnommene Verbindungen werden im
+ * Hintergrund nachgefüllt, tote Verbindungen beim Health-Check verworfen.
+ *
+ * Nachfüllen und Health-Check laufen auf eigenen Threads, damit ein hängender Verbindungsaufbau
+ * weder andere Backends noch den Scheduler des Load Balancers aufhält.
+ */
+class BackendPool {
+    private static final Logger logger = Logger.getLogger(BackendPool.class.getName());
+    static final int CONNECT_TIMEOUT = 1000; // 1 second
+
+    private final int sizePerBackend;
+    private final Map<Server, Backend> backends = new ConcurrentHashMap<>();
+    // Höchstens ein Nachfüll-Task pro Backend (siehe Backend.refilling), Threads werden wiederverwendet
+    private final ExecutorService refiller = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "backend-pool-refill");
+        t.setDaemon(true);
+        return t;
+    });
+    private final ScheduledExecutorService checker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "backend-pool-health");
+        t.setDaemon(true);
+        return t;
+    });
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    // Wird für jede Verbindung aufgerufen, die der Pool schließt, z. B. um Zustand dazu freizugeben
+    private volatile Consumer<SocketChannel> closeListener = channel -> { };
+
+    /**
+     * @param sizePerBackend Anzahl der warm gehaltenen Verbindungen pro Backend-Server.
+     */
+    BackendPool(int sizePerBackend) {
+        this.sizePerBackend = sizePerBackend;
+    }
+
+    /**
+     * Setzt den Empfänger, dem der Pool jede Verbindung meldet, die er schließt. Nutzer, die
+     * Zustand zu einer Verbindung halten, geben ihn dort frei und schließen eigene Verbindungen
+     * über {@link #close(SocketChannel)}.
+     *
+     * @param listener Wird nach dem Schließen aufgerufen.
+     */
+    void setCloseListener(Consumer<SocketChannel> listener) {
+        this.closeListener = listener;
+    }
+
+    /**
+     * Schließt eine entnommene Verbindung, die nicht zurückgegeben werden kann, und meldet sie
+     * dem {@link #setCloseListener Empfänger}.
+     *
+     * @param channel Die Verbindung.
+     */
+    void close(SocketChannel channel) {
+        closeQuietly(channel);
+        closeListener.accept(channel);
+    }
+
+    /**
+     * Nimmt einen neu registrierten Server auf und baut seine Verbindungen auf.
+     *
+     * @param server Der Backend-Server.
+     */
+    void add(Server server) {
+        Backend backend = new Backend(server);
+        if (backends.putIfAbsent(server, backend) == null) {
+            refill(backend);
+        }
+    }
+
+    /**
+     * Entfernt einen Server und schließt alle seine freien Verbindungen.
+     *
+     * @param server Der Backend-Server.
+     */
+    void remove(Server server) {
+        Backend backend = backends.remove(server);
+        if (backend != null) {
+            drain(backend);
+        }
+    }
+
+    /**
+     * Entnimmt eine warme Verbindung, ohne zu blockieren.
+     *
+     * @param server Der Backend-Server.
+     * @return Eine verbundene, nicht-blockierende Verbindung oder null, wenn der Vorrat leer ist.
+     */
+    SocketChannel poll(Server server) {
+        Backend backend = backends.get(server);
+        if (backend == null) {
+            misses.increment();
+            return null;
+        }
+        SocketChannel channel = backend.idle.poll();
+        if (channel == null) {
+            misses.increment();
+        } else {
+            backend.size.decrementAndGet();
+            hits.increment();
+        }
+        refill(backend);
+        return channel;
+    }
+
+    /**
+     * Entnimmt eine warme Verbindung oder baut eine neue auf, wenn der Vorrat leer ist.
+     *
+     * @param server Der Backend-Server.
+     * @return Eine verbundene, nicht-blockierende Verbindung.
+     * @throws IOException Wenn keine Verbindung aufgebaut werden kann.
+     */
+    SocketChannel acquire(Server server) throws IOException {
+        SocketChannel channel = poll(server);
+        if (channel != null) {
+            return channel;
+        }
+        Backend backend = backends.get(server);
+        return open(backend == null ? new InetSocketAddress(server.getKey(), server.getValue()) : backend.address);
+    }
+
+    /**
+     * Gibt eine noch nutzbare Verbindung zur Wiederverwendung zurück. Ist der Vorrat voll oder
+     * der Server nicht mehr registriert, wird sie geschlossen.
+     *
+     * @param server  Der Backend-Server.
+     * @param channel Die Verbindung.
+     */
+    void release(Server server, SocketChannel channel) {
+        Backend backend = backends.get(server);
+        try {
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            close(channel);
+            return;
+        }
+        if (backend == null || backend.size.incrementAndGet() > sizePerBackend) {
+            if (backend != null) {
+                backend.size.decrementAndGet();
+            }
+            close(channel);
+            return;
+        }
+        backend.idle.offer(channel);
+    }
+
+    /**
+     * Startet den periodischen Health-Check auf einem eigenen Thread.
+     *
+     * @param interval Abstand der Prüfungen in Millisekunden.
+     */
+    void startHealthCheck(long interval) {
+        checker.scheduleAtFixedRate(this::healthCheck, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Prüft alle freien Verbindungen. Verbindungen, die vom Server geschlossen wurden oder
+     * unerwartet Daten liefern, werden verworfen und ersetzt. Jede Verbindung wird vorne
+     * entnommen und hinten wieder eingereiht, pro Backend höchstens so viele, wie zu Beginn
+     * frei waren; zurückgegebene Verbindungen werden also nicht erneut geprüft.
+     */
+    void healthCheck() {
+        ByteBuffer probe = ByteBuffer.allocate(1);
+        for (Backend backend : backends.values()) {
+            for (int i = backend.idle.size(); i > 0; i--) {
+                SocketChannel channel = backend.idle.pollFirst();
+                if (channel == null) {
+                    // Inzwischen von Anfragen entnommen
+                    break;
+                }
+                probe.clear();
+                boolean healthy;
+                try {
+                    healthy = channel.read(probe) == 0;
+                } catch (IOException e) {
+                    healthy = false;
+                }
+                if (healthy) {
+                    backend.idle.offerLast(channel);
+                } else {
+                    backend.size.decrementAndGet();
+                    close(channel);
+                }
+            }
+            refill(backend);
+        }
+    }
+
+    /**
+     * Füllt den Vorrat eines Servers im Hintergrund bis zur Zielgröße auf.
+     */
+    private void refill(Backend backend) {
+        if (backend.size.get() >= sizePerBackend || !backend.refilling.compareAndSet(0, 1)) {
+            return;
+        }
+        refiller.execute(() -> {
+            try {
+                while (backends.get(backend.server) == backend && backend.size.get() < sizePerBackend) {
+                    backend.idle.offer(open(backend.address));
+                    backend.size.incrementAndGet();
+                }
+            } catch (IOException e) {
+                if (logger.isLoggable(Level.FINE)) {
+                    logger.fine("Vorrat für " + backend.server + " nicht aufgefüllt: " + e.getMessage());
+                }
+            } finally {
+                backend.refilling.set(0);
+            }
+            if (backends.get(backend.server) != backend) {
+                drain(backend);
+            }
+        });
+    }
+
+    private void drain(Backend backend) {
+        SocketChannel channel;
+        while ((channel = backend.idle.poll()) != null) {
+            close(channel);
+        }
+    }
+
+    /**
+     * Baut eine Verbindung mit {@link #CONNECT_TIMEOUT} auf, damit ein nicht antwortender Server
+     * den Aufrufer nicht bis zum Timeout des Betriebssystems blockiert.
+     */
+    private static SocketChannel open(InetSocketAddress address) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(address, CONNECT_TIMEOUT);
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            closeQuietly(channel);
+            throw e;
+        }
+        return channel;
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * @return Anzahl der freien Verbindungen über alle Backends
+     */
+    int idle() {
+        int idle = 0;
+        for (Backend backend : backends.values()) {
+            idle += backend.size.get();
+        }
+        return idle;
+    }
+
+    /**
+     * @return Anzahl der mit einer freien Verbindung bedienten {@link #acquire}-Aufrufe seit dem Start
+     */
+    long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return Anzahl der {@link #acquire}-Aufrufe seit dem Start, die neu verbinden mussten
+     */
+    long misses() {
+        return misses.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "BackendPool (frei " + idle() + ", Treffer " + hits() + ", Fehlschläge " + misses() + ")";
+    }
+
+    /**
+     * Der Vorrat eines einzelnen Servers. Die Adresse wird nur einmal aufgelöst.
+     */
+    private static final class Backend {
+        private final Server server;
+        private final InetSocketAddress address;
+        private final Deque<SocketChannel> idle = new ConcurrentLinkedDeque<>();
+        private final AtomicInteger size = new AtomicInteger();
+        private final AtomicInteger refilling = new AtomicInteger();
+
+        Backend(Server server) {
+            this.server = server;
+            this.address = new InetSocketAddress(server.getKey(), server.getValue());
+        }
+    }
+}
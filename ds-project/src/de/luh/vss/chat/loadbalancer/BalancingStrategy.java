@@ -0,0 +1,122 @@
+package de.luh.vss.chat.loadbalancer;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Strategie zur Auswahl eines Backend-Servers. Alle Implementierungen arbeiten ohne Sperren auf
+ * einem unveränderlichen Schnappschuss der registrierten Server.
+ */
+interface BalancingStrategy {
+
+    /**
+     * Wählt einen Server aus.
+     *
+     * @param servers Unveränderlicher Schnappschuss der registrierten Server, nicht leer.
+     * @return Der ausgewählte Server.
+     */
+    Server select(List<Server> servers);
+
+    /**
+     * Erzeugt eine Strategie anhand ihres Namens.
+     *
+     * @param name "round-robin", "least-connections", "peak-ewma" oder "p2c".
+     * @return Die Strategie, Round-Robin bei unbekanntem Namen.
+     */
+    static BalancingStrategy of(String name) {
+        switch (name.toLowerCase()) {
+            case "least-connections":
+                return new LeastConnections();
+            case "peak-ewma":
+                return new PeakEwma();
+            case "p2c":
+                return new PowerOfTwoChoices();
+            default:
+                return new RoundRobin();
+        }
+    }
+
+    /**
+     * Round-Robin mit atomarem Zähler.
+     */
+    class RoundRobin implements BalancingStrategy {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Server select(List<Server> servers) {
+            return servers.get(Math.floorMod(counter.getAndIncrement(), servers.size()));
+        }
+    }
+
+    /**
+     * Server mit der geringsten Last (offene Anfragen plus gemeldete Warteschlange). Die Suche
+     * beginnt rotierend, damit Gleichstände nicht immer beim ersten Server landen.
+     */
+    class LeastConnections implements BalancingStrategy {
+        private final AtomicInteger offset = new AtomicInteger();
+
+        @Override
+        public Server select(List<Server> servers) {
+            int size = servers.size();
+            int start = Math.floorMod(offset.getAndIncrement(), size);
+            Server best = null;
+            for (int i = 0; i < size; i++) {
+                Server candidate = servers.get((start + i) % size);
+                if (best == null || candidate.getLoad() < best.getLoad()) {
+                    best = candidate;
+                }
+            }
+            return best;
+        }
+    }
+
+    /**
+     * Server mit den geringsten Kosten aus Peak-EWMA der Antwortzeit und offenen Anfragen.
+     * Langsame Server erhalten so deutlich weniger Verkehr.
+     */
+    class PeakEwma implements BalancingStrategy {
+        private final AtomicInteger offset = new AtomicInteger();
+
+        @Override
+        public Server select(List<Server> servers) {
+            int size = servers.size();
+            int start = Math.floorMod(offset.getAndIncrement(), size);
+            Server best = null;
+            double bestCost = Double.MAX_VALUE;
+            for (int i = 0; i < size; i++) {
+                Server candidate = servers.get((start + i) % size);
+                double cost = candidate.getCost();
+                if (cost < bestCost) {
+                    best = candidate;
+                    bestCost = cost;
+                }
+            }
+            return best;
+        }
+    }
+
+    /**
+     * Zwei zufällig gewählte Server werden anhand ihrer Kosten verglichen. Kommt ohne Scan
+     * aller Server aus und vermeidet, dass alle Anfragen gleichzeitig auf denselben Server fallen.
+     */
+    class PowerOfTwoChoices implements BalancingStrategy {
+
+        @Override
+        public Server select(List<Server> servers) {
+            int size = servers.size();
+            if (size == 1) {
+                return servers.get(0);
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int a = random.nextInt(size);
+            int b = random.nextInt(size - 1);
+            if (b >= a) {
+                b++;
+            }
+            Server first = servers.get(a);
+            Server second = servers.get(b);
+            return first.getCost() <= second.getCost() ? first : second;
+        }
+    }
+}
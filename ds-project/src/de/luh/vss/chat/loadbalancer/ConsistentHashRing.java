@@ -0,0 +1,88 @@
+package de.luh.vss.chat.loadbalancer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Konsistentes Hashing über die registrierten Server. Jeder Server belegt mehrere virtuelle
+ * Knoten auf dem Ring, sodass beim Hinzufügen oder Entfernen eines Servers nur dessen Anteil
+ * der Schlüssel neu verteilt wird. Änderungen erzeugen einen neuen, unveränderlichen Ring,
+ * Abfragen laufen ohne Sperren.
+ */
+class ConsistentHashRing {
+    private static final int VIRTUAL_NODES = 128;
+
+    private volatile NavigableMap<Integer, Server> ring = new TreeMap<>();
+
+    /**
+     * Fügt einen Server mit seinen virtuellen Knoten hinzu.
+     *
+     * @param server Der Backend-Server.
+     */
+    synchronized void add(Server server) {
+        TreeMap<Integer, Server> next = new TreeMap<>(ring);
+        for (int i = 0; i < VIRTUAL_NODES; i++) {
+            next.put(hash(server.getKey() + ":" + server.getValue() + "#" + i), server);
+        }
+        ring = next;
+    }
+
+    /**
+     * Entfernt einen Server und seine virtuellen Knoten.
+     *
+     * @param server Der Backend-Server.
+     */
+    synchronized void remove(Server server) {
+        TreeMap<Integer, Server> next = new TreeMap<>(ring);
+        next.values().removeIf(server::equals);
+        ring = next;
+    }
+
+    /**
+     * Liefert den Server, der für einen Schlüssel zuständig ist. Server im Drain-Modus werden
+     * übersprungen, ihre Schlüssel gehen an den nächsten Server im Uhrzeigersinn.
+     *
+     * @param key Der Schlüssel, z.B. eine User-ID.
+     * @return Der zuständige Server oder null, wenn kein Server verfügbar ist.
+     */
+    Server get(int key) {
+        NavigableMap<Integer, Server> current = ring;
+        int hash = mix(key);
+        for (Server server : current.tailMap(hash, true).values()) {
+            if (!server.isDraining()) {
+                return server;
+            }
+        }
+        for (Server server : current.headMap(hash, false).values()) {
+            if (!server.isDraining()) {
+                return server;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * FNV-1a über die UTF-8-Bytes, anschließend gemischt.
+     */
+    private static int hash(String value) {
+        int h = 0x811c9dc5;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b;
+            h *= 0x01000193;
+        }
+        return mix(h);
+    }
+
+    /**
+     * Finalizer von MurmurHash3, verteilt auch aufeinanderfolgende IDs gleichmäßig.
+     */
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
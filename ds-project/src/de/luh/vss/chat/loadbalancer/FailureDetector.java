@@ -0,0 +1,95 @@
+package de.luh.vss.chat.loadbalancer;
+
+/**
+ * Bewertet anhand der Heartbeat-Zeitstempel, ob ein Server noch lebt. Ein Heartbeat schreibt
+ * nur Zeitstempel und Intervall-Statistik in primitive Felder des {@link Server}; ein einzelner
+ * periodischer Sweep im {@link LoadBalancer} fragt danach {@link #isAlive} für alle Server ab.
+ *
+ * Zwei Verfahren:
+ * <ul>
+ * <li>"timeout": tot, wenn seit dem letzten Heartbeat mehr als {@code timeoutMillis} vergangen sind.</li>
+ * <li>"phi" (Phi-Accrual): aus Mittelwert und Streuung der bisherigen Intervalle wird berechnet,
+ * wie unwahrscheinlich die aktuelle Pause ist; tot ab einem Phi von {@code phiThreshold}
+ * (Phi 8 entspricht einer Irrtumswahrscheinlichkeit von 10^-8). Passt sich an Jitter und an
+ * kürzere Heartbeat-Intervalle von selbst an. {@code timeoutMillis} gilt zusätzlich als obere Grenze.</li>
+ * </ul>
+ */
+class FailureDetector {
+    // Gewicht neuer Intervalle in Mittelwert und Varianz
+    private static final double ALPHA = 0.1;
+
+    private final boolean phi;
+    private final long timeoutNanos;
+    private final double phiThreshold;
+    private final double initialIntervalNanos;
+    private final double minStdDevNanos;
+
+    /**
+     * @param mode                   "phi" oder "timeout"
+     * @param timeoutMillis          Feste Zeitüberschreitung bzw. obere Grenze im Phi-Modus.
+     * @param phiThreshold           Phi, ab dem ein Server als ausgefallen gilt.
+     * @param expectedIntervalMillis Erwartetes Heartbeat-Intervall als Startwert der Statistik.
+     * @param minStdDevMillis        Untergrenze der Streuung, damit sehr gleichmäßige Heartbeats
+     *                               nicht schon bei kleinen Verzögerungen zum Ausfall führen.
+     */
+    FailureDetector(String mode, long timeoutMillis, double phiThreshold, long expectedIntervalMillis, long minStdDevMillis) {
+        this.phi = !"timeout".equalsIgnoreCase(mode);
+        this.timeoutNanos = timeoutMillis * 1_000_000L;
+        this.phiThreshold = phiThreshold;
+        this.initialIntervalNanos = expectedIntervalMillis * 1_000_000d;
+        this.minStdDevNanos = minStdDevMillis * 1_000_000d;
+    }
+
+    /**
+     * Verbucht einen Heartbeat und dessen Abweichung vom erwarteten Intervall (Jitter). Wird nur
+     * vom Heartbeat-Thread aufgerufen.
+     *
+     * @param server Der Server.
+     * @param now    Empfangszeit aus {@link System#nanoTime()}.
+     */
+    void heartbeat(Server server, long now) {
+        if (server.intervalMean == 0) {
+            server.intervalMean = initialIntervalNanos;
+            server.intervalVariance = minStdDevNanos * minStdDevNanos;
+        } else {
+            double interval = now - server.lastHeartbeatNanos;
+            server.heartbeatJitter.record((long) Math.abs(interval - initialIntervalNanos) / 1000);
+            double diff = interval - server.intervalMean;
+            double incr = ALPHA * diff;
+            server.intervalMean += incr;
+            server.intervalVariance = (1 - ALPHA) * (server.intervalVariance + diff * incr);
+        }
+        server.lastHeartbeatNanos = now;
+    }
+
+    /**
+     * @param server Der Server.
+     * @param now    Aktuelle Zeit aus {@link System#nanoTime()}.
+     * @return false, wenn der Server als ausgefallen gilt.
+     */
+    boolean isAlive(Server server, long now) {
+        long elapsed = now - server.lastHeartbeatNanos;
+        if (elapsed > timeoutNanos) {
+            return false;
+        }
+        return !phi || phi(server, now) < phiThreshold;
+    }
+
+    /**
+     * Phi nach Hayashibara et al. mit der logistischen Näherung der Normalverteilung.
+     *
+     * @param server Der Server.
+     * @param now    Aktuelle Zeit aus {@link System#nanoTime()}.
+     * @return -log10 der Wahrscheinlichkeit, dass der nächste Heartbeat noch kommt.
+     */
+    double phi(Server server, long now) {
+        double elapsed = now - server.lastHeartbeatNanos;
+        double stdDev = Math.max(Math.sqrt(server.intervalVariance), minStdDevNanos);
+        double y = (elapsed - server.intervalMean) / stdDev;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if (elapsed > server.intervalMean) {
+            return -Math.log10(e / (1 + e));
+        }
+        return -Math.log10(1 - 1 / (1 + e));
+    }
+}
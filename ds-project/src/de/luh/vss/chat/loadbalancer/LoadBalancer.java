@@ -2,34 +2,208 @@ package de.luh.vss.chat.loadbalancer;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 
+import javax.management.JMException;
+
+import de.luh.vss.chat.common.BufferPool;
+import de.luh.vss.chat.common.Heartbeat;
+import de.luh.vss.chat.common.Metrics;
+
 public class LoadBalancer {
-    private final List<Server> servers = new CopyOnWriteArrayList<>(); // Thread-safe list of servers
-    private int currentServerIndex = 0; // Index für Round-Robin
+    private volatile List<Server> serverSnapshot = List.of(); // Unveränderliche Liste der lebenden Server, nur unter membershipLock ersetzt
+    private final Object membershipLock = new Object();
     private static final Logger logger = Logger.getLogger(LoadBalancer.class.getName());
     private static final int HEARTBEAT_PORT = 8081;
-    private static final int HEARTBEAT_TIMEOUT = 5500; // 5,5 > 2*2,5 (e.g. two heartbeats)
-    private final Map<Server, ScheduledFuture<?>> removalTasks = new ConcurrentHashMap<>();
     private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
 
+    // Ausfallerkennung: "phi" (Phi-Accrual, Standard) oder "timeout"; ein Sweep prüft alle Server
+    private static final String FAILURE_DETECTOR = System.getenv("LB_FAILURE_DETECTOR")==null ? "phi" : System.getenv("LB_FAILURE_DETECTOR");
+    private static final int HEARTBEAT_TIMEOUT = System.getenv("LB_HEARTBEAT_TIMEOUT")==null ? 5500 : Integer.parseInt(System.getenv("LB_HEARTBEAT_TIMEOUT")); // 5,5 > 2*2,5 (e.g. two heartbeats)
+    private static final double PHI_THRESHOLD = System.getenv("LB_PHI_THRESHOLD")==null ? 8 : Double.parseDouble(System.getenv("LB_PHI_THRESHOLD"));
+    private static final int HEARTBEAT_INTERVAL = System.getenv("LB_HEARTBEAT_INTERVAL")==null ? 2500 : Integer.parseInt(System.getenv("LB_HEARTBEAT_INTERVAL"));
+    private static final int SWEEP_INTERVAL = System.getenv("LB_SWEEP_INTERVAL")==null ? 250 : Integer.parseInt(System.getenv("LB_SWEEP_INTERVAL"));
+    private final FailureDetector failureDetector = new FailureDetector(FAILURE_DETECTOR, HEARTBEAT_TIMEOUT, PHI_THRESHOLD,
+            HEARTBEAT_INTERVAL, Math.max(1, HEARTBEAT_INTERVAL / 5));
+
+    // Proxy-Modus: "blocking" (Threads pro Verbindung), "nio" (Event-Loops) oder "l7" (Routing pro Nachricht)
+    private static final String MODE = System.getenv("LB_MODE")==null ? "blocking" : System.getenv("LB_MODE");
+    private static final int EVENT_LOOPS = System.getenv("LB_EVENT_LOOPS")==null ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(System.getenv("LB_EVENT_LOOPS"));
+
+    // Gemeinsamer Pool von Direct-Buffern für beide Proxy-Modi
+    private static final int BUFFER_SIZE = System.getenv("LB_BUFFER_SIZE")==null ? 16384 : Integer.parseInt(System.getenv("LB_BUFFER_SIZE"));
+    private static final int BUFFER_POOL_SIZE = System.getenv("LB_BUFFER_POOL_SIZE")==null ? 1024 : Integer.parseInt(System.getenv("LB_BUFFER_POOL_SIZE"));
+    private static final int STATS_INTERVAL = 10000; // 10 seconds
+    private final BufferPool bufferPool = new BufferPool(BUFFER_SIZE, BUFFER_POOL_SIZE);
+    private final LongAdder forwardedBytes = new LongAdder();
+    private long reportedBytes = 0;
+    private long reportedPoolHits = 0;
+    private long reportedPoolMisses = 0;
+
+    // Warme Verbindungen zu jedem Backend-Server
+    private static final int BACKEND_POOL_SIZE = System.getenv("LB_BACKEND_POOL_SIZE")==null ? 4 : Integer.parseInt(System.getenv("LB_BACKEND_POOL_SIZE"));
+    private static final int HEALTH_CHECK_INTERVAL = 2500; // 2,5 seconds
+    private final BackendPool backendPool = new BackendPool(BACKEND_POOL_SIZE);
+
+    // Hash-Ring für das Routing pro User-ID im L7-Modus
+    private final ConsistentHashRing ring = new ConsistentHashRing();
+
+    // Verbindungen, die ankommen, solange kein Server verfügbar ist
+    private static final int PENDING_LIMIT = System.getenv("LB_PENDING_LIMIT")==null ? 256 : Integer.parseInt(System.getenv("LB_PENDING_LIMIT"));
+    private static final int PENDING_TIMEOUT = System.getenv("LB_PENDING_TIMEOUT")==null ? 10000 : Integer.parseInt(System.getenv("LB_PENDING_TIMEOUT"));
+    private static final int PENDING_CHECK_INTERVAL = 500;
+    private final PendingConnections pending = new PendingConnections(PENDING_LIMIT, PENDING_TIMEOUT);
+    private volatile Consumer<SocketChannel> dispatcher;
+
+    // Auswahlstrategie: "round-robin", "least-connections", "peak-ewma" oder "p2c"
+    private static final String STRATEGY = System.getenv("LB_STRATEGY")==null ? "round-robin" : System.getenv("LB_STRATEGY");
+    private final BalancingStrategy strategy = BalancingStrategy.of(STRATEGY);
+
+    // Metriken über JMX und als Prometheus-Text unter http://METRICS_HOST:METRICS_PORT/metrics; METRICS=off schaltet beides ab
+    private static final boolean METRICS = !"off".equalsIgnoreCase(System.getenv("METRICS"));
+    private static final String METRICS_HOST = System.getenv("METRICS_HOST")==null ? "127.0.0.1" : System.getenv("METRICS_HOST");
+    private static final int METRICS_PORT = System.getenv("METRICS_PORT")==null ? 9080 : Integer.parseInt(System.getenv("METRICS_PORT"));
+    private final Metrics metrics = new Metrics("loadbalancer");
+    private final LongAdder acceptedConnections = new LongAdder();
+
     /**
-     * Methode, um den nächsten Server auszuwählen (Round-Robin).
+     * Methode, um den nächsten Server auszuwählen (gemäß {@link BalancingStrategy}). Server im
+     * Drain-Modus werden übergangen.
      * 
-     * @return Der nächste Server in der Round-Robin-Reihenfolge.
+     * @return Der nächste Server oder null, wenn kein Server verfügbar ist.
      */
-    private synchronized Server getNextServer() {
-        Server server = servers.get(currentServerIndex);
-        currentServerIndex = (currentServerIndex + 1) % servers.size();
-        return server;
+    Server getNextServer() {
+        List<Server> snapshot = serverSnapshot;
+        if (snapshot.isEmpty()) {
+            return null;
+        }
+        Server server = strategy.select(snapshot);
+        if (!server.isDraining()) {
+            return server;
+        }
+        List<Server> available = new ArrayList<>(snapshot.size());
+        for (Server candidate : snapshot) {
+            if (!candidate.isDraining()) {
+                available.add(candidate);
+            }
+        }
+        return available.isEmpty() ? null : strategy.select(available);
+    }
+
+    /**
+     * Prüft, ob mindestens ein Backend-Server registriert ist.
+     * 
+     * @return true, wenn ein Server verfügbar ist.
+     */
+    boolean hasServers() {
+        return !serverSnapshot.isEmpty();
+    }
+
+    /**
+     * Liefert den für eine User-ID zuständigen Server (konsistentes Hashing).
+     * 
+     * @param userId Die User-ID.
+     * @return Der zuständige Server oder null, wenn kein Server registriert ist.
+     */
+    Server route(int userId) {
+        return ring.get(userId);
+    }
+
+    BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    BackendPool getBackendPool() {
+        return backendPool;
+    }
+
+    /**
+     * Zählt weitergeleitete Bytes für die Durchsatzstatistik.
+     * 
+     * @param bytes Anzahl der geschriebenen Bytes.
+     */
+    void recordForwardedBytes(long bytes) {
+        forwardedBytes.add(bytes);
+    }
+
+    /**
+     * Zählt eine angenommene Client-Verbindung.
+     */
+    void recordAccepted() {
+        acceptedConnections.increment();
+    }
+
+    /**
+     * Registriert die Kennzahlen des Load Balancers und stellt sie über JMX und HTTP bereit.
+     * Die Kennzahlen pro Backend-Server kommen mit {@link #addServer} hinzu.
+     */
+    private void startMetrics() {
+        metrics.counter("lb_accepted_connections_total", "Angenommene Client-Verbindungen", acceptedConnections::sum);
+        metrics.counter("lb_forwarded_bytes_total", "Weitergeleitete Bytes in beide Richtungen", forwardedBytes::sum);
+        metrics.gauge("lb_pending_connections", "Zurückgestellte Verbindungen ohne verfügbaren Server", pending::size);
+        metrics.gauge("lb_backends", "Registrierte Backend-Server", () -> serverSnapshot.size());
+        metrics.gauge("lb_backend_pool_idle_connections", "Freie Verbindungen im Backend-Pool", backendPool::idle);
+        metrics.counter("lb_backend_pool_hits_total", "Mit einer freien Pool-Verbindung bediente Anfragen", backendPool::hits);
+        metrics.counter("lb_backend_pool_misses_total", "Anfragen, für die neu zum Backend verbunden wurde", backendPool::misses);
+        try {
+            metrics.registerMBean();
+            metrics.serve(METRICS_HOST, METRICS_PORT);
+            if (logger.isLoggable(Level.INFO)) {
+                logger.info("Metriken unter http://" + METRICS_HOST + ":" + METRICS_PORT + "/metrics");
+            }
+        } catch (IOException | JMException e) {
+            logger.severe("Metriken nicht verfügbar: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Registriert die Kennzahlen eines Backend-Servers mit dem Label backend="host:port".
+     */
+    private void registerMetrics(Server server) {
+        String backend = server.getKey() + ":" + server.getValue();
+        metrics.gauge("lb_backend_active_connections", "Offene Verbindungen bzw. Anfragen zum Backend", server::getInFlight, "backend", backend);
+        metrics.counter("lb_backend_forwarded_bytes_total", "Zum und vom Backend weitergeleitete Bytes", server.forwardedBytes::sum, "backend", backend);
+        metrics.counter("lb_backend_connect_retries_total", "Wiederholte Verbindungsversuche zum Backend", server.connectRetries::sum, "backend", backend);
+        metrics.histogram("lb_backend_connect_latency_microseconds", "Zeit bis zur nutzbaren Backend-Verbindung", server.connectLatency, "backend", backend);
+        metrics.histogram("lb_backend_heartbeat_jitter_microseconds", "Abweichung der Heartbeat-Abstände vom erwarteten Intervall", server.heartbeatJitter, "backend", backend);
+    }
+
+    /**
+     * Loggt periodisch den Durchsatz und die Auslastung des Puffer-Pools.
+     */
+    private void startStatsReport() {
+        scheduler.scheduleAtFixedRate(() -> {
+            long total = forwardedBytes.sum();
+            long bytes = total - reportedBytes;
+            reportedBytes = total;
+            long poolHits = backendPool.hits();
+            long poolMisses = backendPool.misses();
+            long hits = poolHits - reportedPoolHits;
+            long misses = poolMisses - reportedPoolMisses;
+            reportedPoolHits = poolHits;
+            reportedPoolMisses = poolMisses;
+            if (logger.isLoggable(Level.INFO)) {
+                logger.info(String.format("Durchsatz: %d Bytes/s, %s, BackendPool (frei %d, Treffer %d, Fehlschläge %d), %s",
+                        bytes * 1000 / STATS_INTERVAL, bufferPool, backendPool.idle(), hits, misses, pending));
+                long now = System.nanoTime();
+                for (Server server : serverSnapshot) {
+                    logger.info(String.format("Server %s, phi %.1f", server.describeLoad(), failureDetector.phi(server, now)));
+                }
+            }
+        }, STATS_INTERVAL, STATS_INTERVAL, TimeUnit.MILLISECONDS);
+        scheduler.scheduleAtFixedRate(this::sweep, SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+        scheduler.scheduleAtFixedRate(pending::expire, PENDING_CHECK_INTERVAL, PENDING_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+        backendPool.startHealthCheck(HEALTH_CHECK_INTERVAL);
     }
 
     /**
@@ -38,100 +212,208 @@ public class LoadBalancer {
      * @param loadBalancerPort Der Port, auf dem der Load Balancer läuft.
      */
     public void start(int loadBalancerPort) {
-        try (ServerSocket serverSocket = new ServerSocket(loadBalancerPort)) {
+        startStatsReport();
+        if (METRICS) {
+            startMetrics();
+        }
+        if ("nio".equalsIgnoreCase(MODE)) {
+            startNio(loadBalancerPort);
+            return;
+        }
+        try (ServerSocketChannel serverSocket = ServerSocketChannel.open()) {
+            serverSocket.bind(new InetSocketAddress(loadBalancerPort));
             if (logger.isLoggable(Level.INFO)) {
                 logger.info("Load Balancer gestartet auf Port "+ loadBalancerPort);
             }
             //start the heartbeat listening
             new Thread(this::listenForHeartbeats).start();
+            MessageRouter router = "l7".equalsIgnoreCase(MODE) ? new MessageRouter(this) : null;
+            dispatcher = clientSocket -> dispatch(clientSocket, router);
             
             while (true) {
                 // Akzeptiere eingehende Verbindung vom Client
-                Socket clientSocket = serverSocket.accept();
+                SocketChannel clientSocket = serverSocket.accept();
+                recordAccepted();
                 if (logger.isLoggable(Level.INFO)) {
-                    logger.info("Anfrage von Client " +  clientSocket.getInetAddress().getHostAddress() + ":" + clientSocket.getPort());
+                    logger.info("Anfrage von Client " + clientSocket.getRemoteAddress());
                 }
-
-                // Wähle den nächsten Server
-                if(servers.isEmpty()) {
-                	//TODO buffer the request until server is available
-                    if (logger.isLoggable(Level.INFO)) {
-                        logger.severe("Kein Server registriert, Anfrage gespeichert");
-                        
-                    }               
-                    continue;
-                }
-                Server backendServer = getNextServer();
-                // Starte einen neuen Thread für die Anfrage
-                new Thread(() -> handleRequest(clientSocket, backendServer)).start();
+                dispatch(clientSocket, router);
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Übergibt eine Client-Verbindung an einen Server oder stellt sie zurück, wenn keiner
+     * verfügbar ist.
+     * 
+     * @param clientSocket Die blockierende Verbindung zum Client.
+     * @param router       Der L7-Router oder null im blockierenden Modus.
+     */
+    private void dispatch(SocketChannel clientSocket, MessageRouter router) {
+        // Wähle den nächsten Server
+        if (!hasServers()) {
+            park(clientSocket);
+            return;
+        }
+        if (router != null) {
+            new Thread(() -> router.handle(clientSocket)).start();
+            return;
+        }
+        Server backendServer = getNextServer();
+        if (backendServer == null) {
+            // Alle Server im Drain-Modus
+            park(clientSocket);
+            return;
+        }
+        // Starte einen neuen Thread für die Anfrage
+        new Thread(() -> handleRequest(clientSocket, backendServer)).start();
+    }
+
+    /**
+     * Stellt eine Verbindung zurück, bis ein Server registriert wird (siehe {@link PendingConnections}).
+     * 
+     * @param clientSocket Die Verbindung zum Client.
+     */
+    void park(SocketChannel clientSocket) {
+        if (logger.isLoggable(Level.INFO)) {
+            logger.info("Kein Server verfügbar, Anfrage zurückgestellt");
+        }
+        pending.park(clientSocket);
+        // Falls sich zwischenzeitlich ein Server registriert hat, nicht auf den nächsten warten
+        if (getNextServer() != null) {
+            resumePending();
+        }
+    }
+
+    /**
+     * Leitet die zurückgestellten Verbindungen im Scheduler-Thread weiter.
+     */
+    private void resumePending() {
+        Consumer<SocketChannel> current = dispatcher;
+        if (current != null) {
+            scheduler.execute(() -> pending.drain(current));
+        }
+    }
+
+    /**
+     * Startet den Load Balancer im nicht-blockierenden Modus (siehe {@link NioProxy}).
+     * 
+     * @param loadBalancerPort Der Port, auf dem der Load Balancer läuft.
+     */
+    private void startNio(int loadBalancerPort) {
+        new Thread(this::listenForHeartbeats).start();
+        try {
+            NioProxy proxy = new NioProxy(this, EVENT_LOOPS);
+            dispatcher = proxy::dispatch;
+            proxy.start(loadBalancerPort);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     /**
      * Leitet eine Anfrage an den Backend-Server weiter.
      * 
-     * @param clientSocket  Die Socket-Verbindung zum Client.
+     * @param clientSocket  Die Verbindung zum Client.
      * @param backendServer Der Backend-Server, an den die Anfrage weitergeleitet wird.
      */
-    private void handleRequest(Socket clientSocket, Server backendServer) {
-        int retryCount = 3;
-        while (retryCount > 0) {
-            try (
-                DataInputStream clientIn = new DataInputStream(clientSocket.getInputStream());
-                DataOutputStream clientOut = new DataOutputStream(clientSocket.getOutputStream());
-
-                Socket serverSocket = new Socket(backendServer.getKey(), backendServer.getValue());
-            	DataInputStream serverIn = new DataInputStream(serverSocket.getInputStream());
-            	DataOutputStream serverOut = new DataOutputStream(serverSocket.getOutputStream());
-            ) {
-                if (logger.isLoggable(Level.INFO)) {
-                    logger.info("Verbindung zu Backend-Server " + backendServer.getKey() + ":" + backendServer.getValue() + " hergestellt");
-                }
+    private void handleRequest(SocketChannel clientSocket, Server backendServer) {
+        try (SocketChannel client = clientSocket; SocketChannel serverSocket = connect(backendServer)) {
+            if (serverSocket == null) {
+                return;
+            }
+            if (logger.isLoggable(Level.INFO)) {
+                logger.info("Verbindung zu Backend-Server " + backendServer.getKey() + ":" + backendServer.getValue() + " hergestellt");
+            }
+            backendServer.requestStarted();
+            try {
                 // Weiterleiten der Anfrage vom Client zum Server
-                Thread clientToServer = new Thread(() -> transferData(clientIn, serverOut));
+                ResponseTimer timer = new ResponseTimer(backendServer);
+                Thread clientToServer = new Thread(() -> transferData(client, serverSocket, backendServer, timer, false));
                 clientToServer.start();
 
-                // Weiterleiten der Antwort vom Server zum Client
-                transferData(serverIn, clientOut);
+                // Weiterleiten der Antwort vom Server zum Client, Antwortzeit pro Anfrage messen
+                transferData(serverSocket, client, backendServer, timer, true);
 
                 // Warte, bis die Übertragung vom Client abgeschlossen ist
                 clientToServer.join();
-                break;
-            } catch (Exception e) {
+            } finally {
+                backendServer.requestFinished();
+            }
+        } catch (IOException e) {
+            logger.severe("Fehler beim Weiterleiten der Anfrage an " + backendServer.getKey() + ":" + backendServer.getValue() + " - " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Holt eine warme Verbindung zum Backend-Server aus dem Pool oder baut sie mit bis zu
+     * drei Versuchen auf.
+     * 
+     * @param backendServer Der Backend-Server.
+     * @return Die blockierende Verbindung oder null, wenn alle Versuche fehlgeschlagen sind.
+     */
+    private SocketChannel connect(Server backendServer) {
+        int retryCount = 3;
+        long start = System.nanoTime();
+        while (retryCount > 0) {
+            try {
+                SocketChannel channel = backendPool.acquire(backendServer);
+                channel.configureBlocking(true);
+                backendServer.connectLatency.record((System.nanoTime() - start) / 1000);
+                return channel;
+            } catch (IOException e) {
                 retryCount--;
                 if (retryCount == 0) {
                     logger.severe("Fehler beim Weiterleiten der Anfrage an " + backendServer.getKey() + ":" + backendServer.getValue() + " - " + e.getMessage());
                 } else {
+                    backendServer.connectRetries.increment();
                     logger.warning("Retrying connection to " + backendServer.getKey() + ":" + backendServer.getValue());
                 }
-            } finally {
-                try {
-                    clientSocket.close();
-                } catch (IOException ignored) {
-                }
             }
         }
+        return null;
     }
 
     /**
-     * Überträgt Daten zwischen zwei Streams.
+     * Überträgt Daten zwischen zwei Kanälen. Der Puffer stammt aus dem gemeinsamen Pool, die
+     * Daten werden ohne Kopie über den Java-Heap direkt von Socket zu Socket geschrieben. Der
+     * Puffer bleibt belegt, bis die Richtung endet, auch während die Verbindung ruht.
      * 
-     * @param in  Der Eingabestream.
-     * @param out Der Ausgabestream.
+     * @param in        Der Eingabekanal.
+     * @param out       Der Ausgabekanal.
+     * @param backend   Der beteiligte Backend-Server, dem die Bytes zugerechnet werden, oder null.
+     * @param timer     Misst die Antwortzeit des Backends pro Anfrage, oder null.
+     * @param response  true für die Richtung vom Backend zum Client.
      */
-    private void transferData(DataInputStream in, DataOutputStream out) {
+    void transferData(SocketChannel in, SocketChannel out, Server backend, ResponseTimer timer, boolean response) {
+        ByteBuffer buffer = bufferPool.acquire();
         try {
-            byte[] buffer = new byte[8192];
-            int bytesRead;
-            while ((bytesRead = in.read(buffer)) != -1) {
-                out.write(buffer, 0, bytesRead);
-                out.flush();
+            while (in.read(buffer) != -1) {
+                if (timer != null && response) {
+                    timer.responseReceived();
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    int written = out.write(buffer);
+                    forwardedBytes.add(written);
+                    if (backend != null) {
+                        backend.forwardedBytes.add(written);
+                    }
+                }
+                if (timer != null && !response) {
+                    timer.requestSent();
+                }
+                buffer.clear();
             }
+            out.shutdownOutput();
         } catch (IOException e) {
             logger.severe("Fehler beim Übertragen der Daten: " + e.getMessage());
+        } finally {
+            bufferPool.release(buffer);
         }
     }
 
@@ -140,33 +422,28 @@ public class LoadBalancer {
      */
     private void listenForHeartbeats() {
         try (DatagramSocket socket = new DatagramSocket(HEARTBEAT_PORT)) {
-            byte[] buffer = new byte[256];
+            byte[] buffer = new byte[Heartbeat.MAX_SIZE];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            Heartbeat heartbeat = new Heartbeat();
             while (true) {
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                packet.setLength(buffer.length);
                 socket.receive(packet);
-            	Server server = retrieveServerData(packet);
-                if (!servers.contains(server)) {
-                    servers.add(server);
-                    if (logger.isLoggable(Level.INFO)) {
-                        logger.info("Server hinzugefügt: " + servers);
+                Server server;
+                if (Heartbeat.isBinary(buffer, packet.getLength())) {
+                    try {
+                        server = retrieveServerData(heartbeat.decode(buffer, packet.getLength()));
+                    } catch (IllegalArgumentException e) {
+                        logger.warning("Ungültiger Heartbeat von " + packet.getSocketAddress());
+                        continue;
                     }
+                } else {
+                    server = retrieveServerData(packet);
+                }
+                boolean known = server.intervalMean != 0;
+                failureDetector.heartbeat(server, System.nanoTime());
+                if (!known) {
+                    addServer(server);
                 }
-                
-                // Cancel any existing scheduled removal task for this server
-                ScheduledFuture<?> existingTask = removalTasks.remove(server);
-                if (existingTask != null) {
-                    existingTask.cancel(false);
-                }            
-                // Schedule a new removal task
-                ScheduledFuture<?> removalTask = scheduler.schedule(() -> {
-                    servers.remove(server);
-                    removalTasks.remove(server);
-                    logger.info("Server entfernt: " + server);
-                }, HEARTBEAT_TIMEOUT, TimeUnit.MILLISECONDS);
-
-                removalTasks.put(server, removalTask);
-
-                
             }
         } catch (IOException e) {
             logger.severe("Fehler beim Empfangen von Heartbeats: " + e.getMessage());
@@ -174,10 +451,90 @@ public class LoadBalancer {
     }
     
     /**
-     * Extrahiert Serverdaten aus einem DatagramPacket.
+     * Nimmt einen Server in die Mitgliedschaft auf und veröffentlicht einen neuen Schnappschuss.
+     * 
+     * @param server Der Server, von dem der erste Heartbeat kam.
+     */
+    void addServer(Server server) {
+        List<Server> snapshot;
+        synchronized (membershipLock) {
+            List<Server> next = new ArrayList<>(serverSnapshot);
+            next.add(server);
+            snapshot = List.copyOf(next);
+            serverSnapshot = snapshot;
+        }
+        backendPool.add(server);
+        ring.add(server);
+        registerMetrics(server);
+        if (logger.isLoggable(Level.INFO)) {
+            logger.info("Server hinzugefügt: " + snapshot);
+        }
+        resumePending();
+    }
+
+    /**
+     * Prüft alle Server mit dem {@link FailureDetector} und entfernt ausgefallene in einem Schritt.
+     * Solange sich nichts ändert, wird nichts allokiert.
+     */
+    private void sweep() {
+        try {
+            long now = System.nanoTime();
+            List<Server> snapshot = serverSnapshot;
+            List<Server> failed = null;
+            for (Server server : snapshot) {
+                if (!failureDetector.isAlive(server, now)) {
+                    if (failed == null) {
+                        failed = new ArrayList<>();
+                    }
+                    failed.add(server);
+                }
+            }
+            if (failed == null) {
+                return;
+            }
+            synchronized (membershipLock) {
+                List<Server> next = new ArrayList<>(serverSnapshot);
+                next.removeAll(failed);
+                serverSnapshot = List.copyOf(next);
+            }
+            for (Server server : failed) {
+                ring.remove(server);
+                backendPool.remove(server);
+                metrics.remove("backend", server.getKey() + ":" + server.getValue());
+                logger.info(String.format("Server entfernt: %s (phi %.1f)", server, failureDetector.phi(server, now)));
+            }
+        } catch (RuntimeException e) {
+            logger.severe("Fehler bei der Ausfallerkennung: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Ordnet einen binären Heartbeat dem registrierten Server zu und übernimmt dessen
+     * Auslastung. Für bekannte Server wird dabei nichts allokiert.
+     * 
+     * @param heartbeat Der dekodierte Heartbeat.
+     * @return Der registrierte Server oder ein neues Server-Objekt.
+     */
+    private Server retrieveServerData(Heartbeat heartbeat) {
+        Server server = null;
+        for (Server candidate : serverSnapshot) {
+            if (candidate.matches(heartbeat)) {
+                server = candidate;
+                break;
+            }
+        }
+        if (server == null) {
+            server = new Server(heartbeat.getHost(), heartbeat.getPort());
+        }
+        server.update(heartbeat);
+        return server;
+    }
+
+    /**
+     * Extrahiert Serverdaten aus einem DatagramPacket (Textformat "host:port").
      * 
      * @param packet Das DatagramPacket, das die Serverdaten enthält.
-     * @return Ein Server-Objekt mit den extrahierten Daten.
+     * @return Der registrierte Server oder ein neues Server-Objekt.
      */
     private Server retrieveServerData(DatagramPacket packet) {
         String serverInfo = new String(packet.getData(), 0, packet.getLength());
@@ -185,6 +542,11 @@ public class LoadBalancer {
         
         String host = parts[0];
         int port = Integer.parseInt(parts[1]);
+        for (Server candidate : serverSnapshot) {
+            if (candidate.getValue() == port && candidate.getKey().equals(host)) {
+                return candidate;
+            }
+        }
     	return new Server(host, port);
     }
     
@@ -193,12 +555,3 @@ public class LoadBalancer {
         new LoadBalancer().start(8080);
     }
 }
-
-/**
- * Klasse, die einen Server repräsentiert.
- */
-class Server extends AbstractMap.SimpleEntry<String, Integer> {
-    public Server(String key, Integer value) {
-        super(key, value);
-    }
-}
\ No newline at end of file
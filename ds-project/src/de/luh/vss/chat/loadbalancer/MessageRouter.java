@@ -0,0 +1,322 @@
+package de.luh.vss.chat.loadbalancer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+
+import de.luh.vss.chat.common.BufferPool;
+import de.luh.vss.chat.common.FrameCompressor;
+import de.luh.vss.chat.common.Message;
+import de.luh.vss.chat.common.Message.Capabilities;
+import de.luh.vss.chat.common.Message.ChatMessage;
+import de.luh.vss.chat.common.Message.ErrorResponse;
+import de.luh.vss.chat.common.Message.RegisterRequest;
+import de.luh.vss.chat.common.MessageCodec;
+import de.luh.vss.chat.common.MessageType;
+
+/**
+ * Nachrichtenbasiertes Routing (L7). Statt eine Client-Verbindung an einen Server zu binden,
+ * wird jede Nachricht einzeln dekodiert und per konsistentem Hashing über die User-ID an den
+ * zuständigen Server geschickt. Alle Nachrichten eines Users landen so auf demselben Knoten.
+ */
+class MessageRouter {
+    private static final Logger logger = Logger.getLogger(MessageRouter.class.getName());
+    private static final int RESPONSE_TIMEOUT = 5000; // 5 seconds
+    private static final int RESPONSE_BUFFER_SIZE = 1024;
+
+    // Komprimierung großer Chat-Nachrichten zum Backend, nur wenn der Server sie bestätigt
+    private static final boolean COMPRESSION = "deflate".equalsIgnoreCase(System.getenv("LB_COMPRESSION"));
+    private static final int COMPRESSION_THRESHOLD = System.getenv("LB_COMPRESSION_THRESHOLD")==null ? 1024 : Integer.parseInt(System.getenv("LB_COMPRESSION_THRESHOLD"));
+    private static final int COMPRESSION_LEVEL = System.getenv("LB_COMPRESSION_LEVEL")==null ? 1 : Integer.parseInt(System.getenv("LB_COMPRESSION_LEVEL"));
+    private static final FrameCompressor UNCOMPRESSED = new FrameCompressor(Integer.MAX_VALUE, Deflater.NO_COMPRESSION);
+
+    // Streams mit offenen Anfragen je Client-Verbindung; sie laufen über eine Verbindung je Server (siehe StreamRelay)
+    private static final int MAX_STREAMS = System.getenv("LB_MAX_STREAMS")==null ? 1024 : Integer.parseInt(System.getenv("LB_MAX_STREAMS"));
+
+    private final LoadBalancer loadBalancer;
+    private final BackendPool backendPool;
+    private final BufferPool bufferPool;
+    // Ausgehandelter Zustand je Backend-Verbindung; wird freigegeben, sobald der Pool die Verbindung schließt
+    private final Map<SocketChannel, FrameCompressor> compressors = new ConcurrentHashMap<>();
+    private final Map<Server, StreamRelay> relays = new ConcurrentHashMap<>();
+
+    /**
+     * @param loadBalancer Der Load Balancer mit Hash-Ring und Verbindungs-Pool.
+     */
+    MessageRouter(LoadBalancer loadBalancer) {
+        this.loadBalancer = loadBalancer;
+        this.backendPool = loadBalancer.getBackendPool();
+        this.bufferPool = loadBalancer.getBufferPool();
+        backendPool.setCloseListener(this::closed);
+    }
+
+    /**
+     * Liest Nachrichten vom Client, bis dieser die Verbindung schließt, und leitet jede
+     * einzeln weiter. Antworten werden in Reihenfolge an den Client zurückgeschrieben.
+     * Schickt der Client Frames (siehe {@link MessageCodec}), antwortet der Router mit Frames,
+     * die die Korrelations-ID der Anfrage tragen. Frames auf einem Stream gehen ohne Dekodieren
+     * über die Stream-Verbindung des zuständigen Servers ({@link StreamRelay}): Die Streams werden
+     * unabhängig voneinander weitergeleitet, so dass viele User-Sitzungen eine Verbindung bis zum
+     * ServerNode teilen können, ohne aufeinander zu warten.
+     * Eine Nachricht, die sich nicht dekodieren lässt, wird mit einer {@link ErrorResponse}
+     * beantwortet und die Verbindung danach geschlossen, wie im ServerNode.
+     *
+     * @param clientSocket Die blockierende Verbindung zum Client.
+     */
+    void handle(SocketChannel clientSocket) {
+        StreamRelay.Client streams = null;
+        try (SocketChannel client = clientSocket) {
+            DataInputStream clientIn = new DataInputStream(new BufferedInputStream(client.socket().getInputStream()));
+            DataOutputStream clientOut = new DataOutputStream(new BufferedOutputStream(client.socket().getOutputStream()));
+            ByteBuffer responseBuffer = ByteBuffer.allocate(RESPONSE_BUFFER_SIZE);
+            ByteBuffer clientBuffer = null;
+            while (true) {
+                Message msg;
+                Server server;
+                boolean framed;
+                int correlationId = MessageCodec.NO_CORRELATION;
+                try {
+                    int word = clientIn.readInt();
+                    framed = MessageCodec.isFrameHeader(word);
+                    if (framed) {
+                        MessageCodec.Frame frame = MessageCodec.readFrame(clientIn, word, clientBuffer);
+                        clientBuffer = frame.body();
+                        if (frame.streamId() != MessageCodec.NO_STREAM) {
+                            if (streams == null) {
+                                streams = new StreamRelay.Client(clientOut, MAX_STREAMS);
+                            }
+                            relay(streams, frame);
+                            continue;
+                        }
+                        correlationId = frame.correlationId();
+                        // Routing liest nur Typ und User-ID, der Text wird erst danach dekodiert
+                        server = route(frame);
+                        msg = frame.message();
+                    } else {
+                        msg = MessageType.fromInt(word, clientIn);
+                        server = route(msg);
+                    }
+                } catch (EOFException e) {
+                    break;
+                } catch (IllegalStateException e) {
+                    // Der Rest des Datenstroms lässt sich nicht mehr in Nachrichten zerlegen
+                    logger.warning("Ungültige Nachricht vom Client: " + e.getMessage());
+                    synchronized (clientOut) {
+                        new ErrorResponse(e.getMessage()).toStream(clientOut);
+                        clientOut.flush();
+                    }
+                    break;
+                }
+                Message response = forward(msg, server, responseBuffer);
+                // Antworten auf Streams werden nebenläufig geschrieben
+                synchronized (clientOut) {
+                    if (response != null && framed) {
+                        clientBuffer = writeFrame(clientOut, response, clientBuffer, correlationId);
+                        clientOut.flush();
+                    } else if (response != null) {
+                        response.toStream(clientOut);
+                        clientOut.flush();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.severe("Fehler beim Weiterleiten der Nachrichten: " + e.getMessage());
+        } finally {
+            if (streams != null) {
+                streams.close();
+            }
+        }
+    }
+
+    /**
+     * Leitet einen Stream-Frame an den zuständigen Server weiter. WindowUpdates des Clients
+     * werden verworfen, der Load Balancer sendet keine Anfragen auf Streams.
+     *
+     * @throws IllegalStateException Wenn der Frame zu kurz für die User-ID ist.
+     */
+    private void relay(StreamRelay.Client streams, MessageCodec.Frame frame) {
+        if (frame.type() == MessageType.WINDOW_UPDATE) {
+            return;
+        }
+        Server server = route(frame);
+        if (server == null) {
+            streams.reply(frame.streamId(), frame.correlationId(), new ErrorResponse("No server available"), frame.length());
+            return;
+        }
+        relays.computeIfAbsent(server, s -> new StreamRelay(s, loadBalancer)).send(streams, frame);
+    }
+
+    /**
+     * Schreibt eine Antwort als Frame mit der Korrelations-ID der Anfrage an den Client.
+     *
+     * @return Der Puffer der Verbindung, größer als zuvor, wenn die Antwort ihn brauchte.
+     */
+    private static ByteBuffer writeFrame(DataOutputStream clientOut, Message response, ByteBuffer buffer, int correlationId) throws IOException {
+        int size = MessageCodec.encodedSize(response) + MessageCodec.CORRELATION_SIZE;
+        if (buffer == null || buffer.capacity() < size) {
+            buffer = ByteBuffer.allocate(Math.max(size, RESPONSE_BUFFER_SIZE));
+        }
+        buffer.clear();
+        MessageCodec.encode(response, buffer, null, correlationId);
+        clientOut.write(buffer.array(), 0, buffer.position());
+        return buffer;
+    }
+
+    /**
+     * Schickt eine Nachricht als Frame (siehe {@link MessageCodec}) an den zuständigen Server und
+     * wartet auf dessen Antwort.
+     *
+     * @param msg            Die Nachricht vom Client.
+     * @param server         Der gewählte Server, null wenn keiner verfügbar ist.
+     * @param responseBuffer Puffer der Client-Verbindung für die Antwort.
+     * @return Die Antwort des Servers oder eine Fehlermeldung.
+     */
+    private Message forward(Message msg, Server server, ByteBuffer responseBuffer) {
+        if (server == null) {
+            return new ErrorResponse("No server available");
+        }
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine(msg + " -> " + server);
+        }
+        SocketChannel backend = null;
+        boolean reusable = false;
+        long start = System.nanoTime();
+        server.requestStarted();
+        try {
+            backend = backendPool.acquire(server);
+            server.connectLatency.record((System.nanoTime() - start) / 1000);
+            backend.configureBlocking(true);
+            backend.socket().setSoTimeout(RESPONSE_TIMEOUT);
+            FrameCompressor compressor = compressorFor(backend, responseBuffer);
+            long bytes = send(backend, msg, compressor);
+            long sent = System.nanoTime();
+            DataInputStream backendIn = new DataInputStream(backend.socket().getInputStream());
+            int word = backendIn.readInt();
+            // Antwortzeit des Backends ohne Verbindungsaufbau und Aushandlung
+            server.recordLatency(System.nanoTime() - sent);
+            Message response;
+            if (MessageCodec.isFrameHeader(word)) {
+                bytes += MessageCodec.HEADER_SIZE + MessageCodec.frameLength(word);
+                response = MessageCodec.readFrame(backendIn, word, responseBuffer).message(compressor);
+            } else {
+                response = MessageType.fromInt(word, backendIn);
+            }
+            loadBalancer.recordForwardedBytes(bytes);
+            server.forwardedBytes.add(bytes);
+            reusable = true;
+            return response;
+        } catch (IOException | IllegalStateException e) {
+            logger.severe("Fehler beim Weiterleiten an " + server.getKey() + ":" + server.getValue() + " - " + e.getMessage());
+            return new ErrorResponse("Forwarding failed");
+        } finally {
+            server.requestFinished();
+            if (backend != null) {
+                if (reusable) {
+                    // ServerNode hält die Verbindung offen, sie kann die nächste Nachricht tragen
+                    backendPool.release(server, backend);
+                } else {
+                    // Nach Fehlern oder Timeouts ist der Zustand der Verbindung unklar
+                    backendPool.close(backend);
+                }
+            }
+        }
+    }
+
+    /**
+     * Liefert den Komprimierungszustand einer Backend-Verbindung. Bei der ersten Nutzung wird
+     * DEFLATE angeboten; Server, die das Angebot nicht bestätigen, erhalten unkomprimierte Frames.
+     *
+     * @return Der Zustand oder null, wenn auf dieser Verbindung nicht komprimiert wird.
+     */
+    private FrameCompressor compressorFor(SocketChannel backend, ByteBuffer responseBuffer) throws IOException {
+        if (!COMPRESSION) {
+            return null;
+        }
+        FrameCompressor compressor = compressors.get(backend);
+        if (compressor == null) {
+            send(backend, new Capabilities(Capabilities.DEFLATE), null);
+            DataInputStream backendIn = new DataInputStream(backend.socket().getInputStream());
+            int word = backendIn.readInt();
+            Message answer = MessageCodec.isFrameHeader(word)
+                    ? MessageCodec.readFrame(backendIn, word, responseBuffer).message()
+                    : MessageType.fromInt(word, backendIn);
+            boolean accepted = answer instanceof Capabilities && ((Capabilities) answer).supports(Capabilities.DEFLATE);
+            compressor = accepted ? new FrameCompressor(COMPRESSION_THRESHOLD, COMPRESSION_LEVEL) : UNCOMPRESSED;
+            compressors.put(backend, compressor);
+        }
+        return compressor == UNCOMPRESSED ? null : compressor;
+    }
+
+    /**
+     * Gibt den Komprimierungszustand einer geschlossenen Backend-Verbindung frei, damit der
+     * native Speicher von Deflater und Inflater nicht erst mit der GC zurückkommt.
+     */
+    private void closed(SocketChannel backend) {
+        FrameCompressor compressor = compressors.remove(backend);
+        if (compressor != null && compressor != UNCOMPRESSED) {
+            compressor.end();
+        }
+    }
+
+    /**
+     * Kodiert die Nachricht in einen Puffer aus dem Pool und schreibt sie mit einem Aufruf.
+     * Nachrichten, die größer als die Pool-Puffer sind, erhalten einen eigenen Puffer.
+     *
+     * @return Anzahl der geschriebenen Bytes.
+     */
+    private int send(SocketChannel backend, Message msg, FrameCompressor compressor) throws IOException {
+        int size = MessageCodec.encodedSize(msg);
+        boolean pooled = size <= bufferPool.bufferSize();
+        ByteBuffer buffer = pooled ? bufferPool.acquire() : ByteBuffer.allocate(size);
+        try {
+            buffer.clear();
+            MessageCodec.encode(msg, buffer, compressor);
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                backend.write(buffer);
+            }
+            return buffer.limit();
+        } finally {
+            if (pooled) {
+                bufferPool.release(buffer);
+            }
+        }
+    }
+
+    /**
+     * Wählt den Server für eine Nachricht. Chat-Nachrichten und Registrierungen werden über die
+     * User-ID gehasht, alle anderen Nachrichten über die Auswahlstrategie verteilt.
+     */
+    private Server route(Message msg) {
+        if (msg.getMessageType() == MessageType.CHAT_MESSAGE) {
+            return loadBalancer.route(((ChatMessage) msg).getRecipient().id());
+        }
+        if (msg.getMessageType() == MessageType.REGISTER_REQUEST) {
+            return loadBalancer.route(((RegisterRequest) msg).getUserId().id());
+        }
+        return loadBalancer.getNextServer();
+    }
+
+    /**
+     * Wählt den Server für einen Frame wie {@link #route(Message)}, ohne den Text zu dekodieren.
+     *
+     * @throws IllegalStateException Wenn der Frame zu kurz für die User-ID ist.
+     */
+    private Server route(MessageCodec.Frame frame) {
+        MessageType type = frame.type();
+        if (type == MessageType.CHAT_MESSAGE || type == MessageType.REGISTER_REQUEST) {
+            return loadBalancer.route(frame.recipient().id());
+        }
+        return loadBalancer.getNextServer();
+    }
+}
@@ -0,0 +1,418 @@
+package de.luh.vss.chat.loadbalancer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.luh.vss.chat.common.BufferPool;
+
+/**
+ * Nicht-blockierender Proxy-Modus des Load Balancers. Ein Acceptor nimmt Verbindungen an
+ * und verteilt sie auf wenige Event-Loops, die alle Client/Backend-Paare per Selector
+ * multiplexen. Es gibt keine Threads pro Verbindung, und Puffer aus dem gemeinsamen
+ * {@link BufferPool} werden nur gehalten, solange Daten unterwegs sind.
+ */
+class NioProxy {
+    private static final Logger logger = Logger.getLogger(NioProxy.class.getName());
+    // Höchstens so viele Puffer pro Richtung, bevor die Quelle pausiert wird
+    private static final int MAX_BUFFERS_PER_DIRECTION = 4;
+    private static final int CONNECT_ATTEMPTS = 3;
+
+    private final LoadBalancer loadBalancer;
+    private final BufferPool bufferPool;
+    private final BackendPool backendPool;
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    /**
+     * Erzeugt den Proxy.
+     *
+     * @param loadBalancer Der Load Balancer, der die Backend-Server auswählt.
+     * @param loopCount    Anzahl der Event-Loop-Threads.
+     */
+    NioProxy(LoadBalancer loadBalancer, int loopCount) {
+        this.loadBalancer = loadBalancer;
+        this.bufferPool = loadBalancer.getBufferPool();
+        this.backendPool = loadBalancer.getBackendPool();
+        this.loops = new EventLoop[Math.max(1, loopCount)];
+    }
+
+    /**
+     * Startet die Event-Loops und nimmt im aufrufenden Thread Verbindungen an.
+     *
+     * @param port Der Port, auf dem der Load Balancer läuft.
+     * @throws IOException Wenn der Port nicht gebunden werden kann.
+     */
+    void start(int port) throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+            new Thread(loops[i], "nio-loop-" + i).start();
+        }
+        try (ServerSocketChannel acceptor = ServerSocketChannel.open()) {
+            acceptor.bind(new InetSocketAddress(port), 1024);
+            if (logger.isLoggable(Level.INFO)) {
+                logger.info("NIO-Proxy gestartet auf Port " + port + " mit " + loops.length + " Event-Loops");
+            }
+            while (true) {
+                SocketChannel client = acceptor.accept();
+                loadBalancer.recordAccepted();
+                dispatch(client);
+            }
+        }
+    }
+
+    /**
+     * Übergibt eine Client-Verbindung an eine Event-Loop. Ohne verfügbaren Server wird sie im
+     * Load Balancer zurückgestellt und später erneut übergeben.
+     *
+     * @param client Die blockierende Client-Verbindung.
+     */
+    void dispatch(SocketChannel client) {
+        if (!loadBalancer.hasServers()) {
+            loadBalancer.park(client);
+            return;
+        }
+        try {
+            client.configureBlocking(false);
+            nextLoop().register(new Pair(client));
+        } catch (IOException e) {
+            logger.warning("Verbindung konnte nicht übernommen werden: " + e.getMessage());
+            try {
+                client.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private EventLoop nextLoop() {
+        return loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+    }
+
+    /**
+     * Ein Thread mit eigenem Selector, der eine Teilmenge der Verbindungen bedient.
+     */
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Pair> pending = new ConcurrentLinkedQueue<>();
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void register(Pair pair) {
+            pending.add(pair);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    Pair pair;
+                    while ((pair = pending.poll()) != null) {
+                        try {
+                            pair.connect(selector);
+                        } catch (RuntimeException e) {
+                            // Nur dieses Paar aufgeben, die übrigen werden weiter verbunden
+                            logger.severe("Fehler beim Verbinden: " + e);
+                            pair.close();
+                        }
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Pair selected = (Pair) key.attachment();
+                        try {
+                            selected.handle(key);
+                        } catch (RuntimeException e) {
+                            logger.severe("Fehler beim Übertragen der Daten: " + e);
+                            selected.close();
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    logger.severe("Fehler in der Event-Loop: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Eine Client-Verbindung und die zugehörige Backend-Verbindung.
+     */
+    private final class Pair {
+        private final SocketChannel client;
+        private SocketChannel backend;
+        private SelectionKey clientKey;
+        private SelectionKey backendKey;
+        private Server server;
+        private int attempts = 0;
+
+        private Direction toBackend;
+        private Direction toClient;
+        private long connectStartNanos;
+        private boolean started = false;
+
+        Pair(SocketChannel client) {
+            this.client = client;
+        }
+
+        /**
+         * Baut die Verbindung zum nächsten Backend-Server auf.
+         */
+        void connect(Selector selector) {
+            try {
+                if (attempts == 0) {
+                    connectStartNanos = System.nanoTime();
+                }
+                if (!loadBalancer.hasServers() || attempts++ >= CONNECT_ATTEMPTS) {
+                    logger.severe("Kein erreichbarer Backend-Server für " + client.getRemoteAddress());
+                    close();
+                    return;
+                }
+                server = loadBalancer.getNextServer();
+                if (server == null) {
+                    close();
+                    return;
+                }
+                backend = backendPool.poll(server);
+                if (backend != null) {
+                    // Warme Verbindung aus dem Pool, kein Verbindungsaufbau nötig
+                    backendKey = backend.register(selector, SelectionKey.OP_READ, this);
+                    onConnected(selector);
+                    return;
+                }
+                backend = SocketChannel.open();
+                backend.configureBlocking(false);
+                backend.connect(new InetSocketAddress(server.getKey(), server.getValue()));
+                backendKey = backend.register(selector, SelectionKey.OP_CONNECT, this);
+            } catch (IOException | UnresolvedAddressException e) {
+                // Auch ein per Heartbeat gemeldeter Host, der gerade nicht auflösbar ist, führt zum nächsten Server
+                if (server == null) {
+                    close();
+                    return;
+                }
+                logger.warning("Retrying connection to " + server.getKey() + ":" + server.getValue());
+                server.connectRetries.increment();
+                if (backendKey != null) {
+                    backendKey.cancel();
+                }
+                closeQuietly(backend);
+                backend = null;
+                connect(selector);
+            }
+        }
+
+        void handle(SelectionKey key) {
+            if (!key.isValid()) {
+                return;
+            }
+            try {
+                if (key.isConnectable()) {
+                    finishConnect(key.selector());
+                    return;
+                }
+                Direction in = key == clientKey ? toBackend : toClient;
+                Direction out = key == clientKey ? toClient : toBackend;
+                if (key.isReadable()) {
+                    in.onReadable();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    out.onWritable();
+                }
+                if (toBackend.isDone() && toClient.isDone()) {
+                    close();
+                }
+            } catch (IOException e) {
+                logger.severe("Fehler beim Übertragen der Daten: " + e.getMessage());
+                close();
+            }
+        }
+
+        private void finishConnect(Selector selector) throws IOException {
+            try {
+                backend.finishConnect();
+            } catch (IOException e) {
+                logger.warning("Retrying connection to " + server.getKey() + ":" + server.getValue());
+                server.connectRetries.increment();
+                backendKey.cancel();
+                closeQuietly(backend);
+                connect(selector);
+                return;
+            }
+            backendKey.interestOps(SelectionKey.OP_READ);
+            onConnected(selector);
+        }
+
+        private void onConnected(Selector selector) throws IOException {
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine("Verbindung zu Backend-Server " + server.getKey() + ":" + server.getValue() + " hergestellt");
+            }
+            server.requestStarted();
+            started = true;
+            server.connectLatency.record((System.nanoTime() - connectStartNanos) / 1000);
+            clientKey = client.register(selector, SelectionKey.OP_READ, this);
+            ResponseTimer timer = new ResponseTimer(server);
+            toBackend = new Direction(client, clientKey, backend, backendKey, server, timer, false);
+            toClient = new Direction(backend, backendKey, client, clientKey, server, timer, true);
+        }
+
+        void close() {
+            if (started) {
+                started = false;
+                server.requestFinished();
+            }
+            if (toBackend != null) {
+                toBackend.releaseAll();
+                toClient.releaseAll();
+            }
+            closeQuietly(client);
+            closeQuietly(backend);
+        }
+    }
+
+    /**
+     * Eine Übertragungsrichtung. Liest so lange von der Quelle, bis keine Daten mehr anliegen
+     * oder das Pufferlimit erreicht ist, und schreibt dann alles mit einem einzigen
+     * Gathering-Write. Kann das Ziel nicht alles aufnehmen, pausiert die Quelle, bis der Rest
+     * geschrieben ist.
+     */
+    private final class Direction {
+        private final SocketChannel src;
+        private final SelectionKey srcKey;
+        private final SocketChannel dst;
+        private final SelectionKey dstKey;
+        private final Server server;
+        private final ResponseTimer timer;
+        private final boolean response; // vom Backend zum Client
+        private final ByteBuffer[] buffers = new ByteBuffer[MAX_BUFFERS_PER_DIRECTION];
+        private int count = 0;
+        private int first = 0;
+        private boolean eof = false;
+        private boolean outputShutdown = false;
+
+        Direction(SocketChannel src, SelectionKey srcKey, SocketChannel dst, SelectionKey dstKey, Server server,
+                ResponseTimer timer, boolean response) {
+            this.src = src;
+            this.srcKey = srcKey;
+            this.dst = dst;
+            this.dstKey = dstKey;
+            this.server = server;
+            this.timer = timer;
+            this.response = response;
+        }
+
+        void onReadable() throws IOException {
+            if (count > 0) {
+                // Vorherige Daten sind noch nicht geschrieben
+                return;
+            }
+            while (true) {
+                if (count == 0 || !buffers[count - 1].hasRemaining()) {
+                    if (count == buffers.length) {
+                        break;
+                    }
+                    buffers[count++] = bufferPool.acquire();
+                }
+                int n = src.read(buffers[count - 1]);
+                if (n == -1) {
+                    eof = true;
+                    srcKey.interestOps(srcKey.interestOps() & ~SelectionKey.OP_READ);
+                    break;
+                }
+                if (n == 0) {
+                    break;
+                }
+                if (response) {
+                    timer.responseReceived();
+                }
+            }
+            if (buffers[count - 1].position() == 0) {
+                bufferPool.release(buffers[--count]);
+            }
+            flush();
+        }
+
+        void onWritable() throws IOException {
+            write();
+        }
+
+        /**
+         * Schreibt die gelesenen Daten gesammelt ins Ziel.
+         */
+        private void flush() throws IOException {
+            for (int i = 0; i < count; i++) {
+                buffers[i].flip();
+            }
+            first = 0;
+            write();
+        }
+
+        private void write() throws IOException {
+            if (first < count) {
+                long written = dst.write(buffers, first, count - first);
+                loadBalancer.recordForwardedBytes(written);
+                server.forwardedBytes.add(written);
+                if (!response && written > 0) {
+                    timer.requestSent();
+                }
+                while (first < count && !buffers[first].hasRemaining()) {
+                    first++;
+                }
+            }
+            if (first < count) {
+                // Ziel ist voll: Quelle pausieren und auf OP_WRITE warten
+                srcKey.interestOps(srcKey.interestOps() & ~SelectionKey.OP_READ);
+                dstKey.interestOps(dstKey.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+            releaseAll();
+            if (dstKey.isValid()) {
+                dstKey.interestOps(dstKey.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+            if (eof) {
+                if (!outputShutdown) {
+                    outputShutdown = true;
+                    dst.shutdownOutput();
+                }
+            } else if (srcKey.isValid()) {
+                srcKey.interestOps(srcKey.interestOps() | SelectionKey.OP_READ);
+            }
+        }
+
+        boolean isDone() {
+            return outputShutdown;
+        }
+
+        void releaseAll() {
+            for (int i = 0; i < count; i++) {
+                bufferPool.release(buffers[i]);
+                buffers[i] = null;
+            }
+            count = 0;
+            first = 0;
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
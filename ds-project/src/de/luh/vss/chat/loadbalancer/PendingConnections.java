@@ -0,0 +1,132 @@
+package de.luh.vss.chat.loadbalancer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+import de.luh.vss.chat.common.Message.ErrorResponse;
+
+/**
+ * Warteschlange für angenommene Client-Verbindungen, solange kein Backend-Server verfügbar ist
+ * (Kaltstart, Rolling Restart). Die Schlange ist begrenzt: Verbindungen, die keinen Platz mehr
+ * finden oder zu lange warten, erhalten eine {@link ErrorResponse} und werden geschlossen.
+ * Sobald ein Server registriert wird, werden alle wartenden Verbindungen in Ankunftsreihenfolge
+ * weitergegeben.
+ */
+class PendingConnections {
+    private static final Logger logger = Logger.getLogger(PendingConnections.class.getName());
+
+    private final int limit;
+    private final long timeoutNanos;
+    private final ArrayDeque<Parked> queue = new ArrayDeque<>();
+    private long resumed = 0;
+    private long rejected = 0;
+    private long expired = 0;
+
+    /**
+     * @param limit         Maximale Anzahl wartender Verbindungen.
+     * @param timeoutMillis Maximale Wartezeit einer Verbindung.
+     */
+    PendingConnections(int limit, long timeoutMillis) {
+        this.limit = limit;
+        this.timeoutNanos = timeoutMillis * 1_000_000L;
+    }
+
+    /**
+     * Stellt eine Verbindung zurück. Ist die Schlange voll, wird der Client sofort abgewiesen.
+     *
+     * @param client Die blockierende Client-Verbindung.
+     */
+    void park(SocketChannel client) {
+        synchronized (this) {
+            if (queue.size() < limit) {
+                queue.addLast(new Parked(client, System.nanoTime()));
+                return;
+            }
+            rejected++;
+        }
+        logger.warning("Warteschlange voll, Verbindung abgewiesen");
+        reject(client, "No server available");
+    }
+
+    /**
+     * Gibt alle wartenden Verbindungen in Ankunftsreihenfolge weiter.
+     *
+     * @param dispatcher Übernimmt eine Verbindung, z.B. durch Weiterleiten an einen Server.
+     */
+    void drain(Consumer<SocketChannel> dispatcher) {
+        List<Parked> ready;
+        synchronized (this) {
+            if (queue.isEmpty()) {
+                return;
+            }
+            ready = new ArrayList<>(queue);
+            queue.clear();
+            resumed += ready.size();
+        }
+        logger.info(ready.size() + " wartende Verbindungen werden weitergeleitet");
+        for (Parked parked : ready) {
+            dispatcher.accept(parked.client());
+        }
+    }
+
+    /**
+     * Weist alle Verbindungen ab, die länger als die maximale Wartezeit warten. Die ältesten
+     * Verbindungen stehen vorne, daher endet die Prüfung bei der ersten noch gültigen.
+     */
+    void expire() {
+        long now = System.nanoTime();
+        List<SocketChannel> timedOut = null;
+        synchronized (this) {
+            Parked head;
+            while ((head = queue.peekFirst()) != null && now - head.since() > timeoutNanos) {
+                queue.pollFirst();
+                expired++;
+                if (timedOut == null) {
+                    timedOut = new ArrayList<>();
+                }
+                timedOut.add(head.client());
+            }
+        }
+        if (timedOut != null) {
+            logger.warning(timedOut.size() + " wartende Verbindungen nach Zeitüberschreitung abgewiesen");
+            for (SocketChannel client : timedOut) {
+                reject(client, "No server available (timeout)");
+            }
+        }
+    }
+
+    synchronized int size() {
+        return queue.size();
+    }
+
+    /**
+     * Schickt dem Client eine Fehlermeldung und schließt die Verbindung.
+     */
+    static void reject(SocketChannel client, String reason) {
+        try (client) {
+            client.configureBlocking(true);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(client)));
+            new ErrorResponse(reason).toStream(out);
+            out.flush();
+        } catch (IOException ignored) {
+            // Client ist bereits weg
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("Warteschlange (wartend %d, weitergeleitet %d, abgewiesen %d, abgelaufen %d)",
+                queue.size(), resumed, rejected, expired);
+    }
+
+    private record Parked(SocketChannel client, long since) {
+    }
+}
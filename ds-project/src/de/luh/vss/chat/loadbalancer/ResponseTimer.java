@@ -0,0 +1,41 @@
+package de.luh.vss.chat.loadbalancer;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Misst die Antwortzeit eines Backends pro Anfrage für die Peak-EWMA: vom ersten Byte einer
+ * Anfrage, das zum Backend geschrieben wird, bis zum ersten Byte der Antwort. Die Denkzeit des
+ * Clients zwischen zwei Anfragen zählt so nicht mit. Beide Richtungen einer Verbindung dürfen
+ * auf verschiedenen Threads laufen.
+ */
+final class ResponseTimer {
+    private final Server server;
+    // Zeitpunkt der offenen Anfrage, 0 wenn keine Anfrage auf eine Antwort wartet
+    private final AtomicLong sentNanos = new AtomicLong();
+
+    ResponseTimer(Server server) {
+        this.server = server;
+    }
+
+    /**
+     * Nach dem Schreiben von Client-Bytes zum Backend aufzurufen. Startet die Messung, wenn keine
+     * Anfrage offen ist; weitere Bytes derselben Anfrage ändern nichts.
+     */
+    void requestSent() {
+        if (sentNanos.get() == 0) {
+            sentNanos.compareAndSet(0, System.nanoTime() | 1);
+        }
+    }
+
+    /**
+     * Nach dem Lesen von Backend-Bytes aufzurufen. Beendet eine offene Messung.
+     */
+    void responseReceived() {
+        if (sentNanos.get() != 0) {
+            long sent = sentNanos.getAndSet(0);
+            if (sent != 0) {
+                server.recordLatency(System.nanoTime() - sent);
+            }
+        }
+    }
+}
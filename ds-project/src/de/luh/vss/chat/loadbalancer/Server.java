@@ -0,0 +1,158 @@
+package de.luh.vss.chat.loadbalancer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import de.luh.vss.chat.common.Heartbeat;
+import de.luh.vss.chat.common.LatencyHistogram;
+
+/**
+ * Klasse, die einen Server repräsentiert. Neben Host und Port werden die aktuell offenen
+ * Anfragen und die Antwortzeit (Peak-EWMA) aus dem weitergeleiteten Verkehr sowie die vom
+ * Server per Heartbeat gemeldete Auslastung geführt.
+ */
+class Server extends AbstractMap.SimpleEntry<String, Integer> {
+    // Abklingzeit der EWMA: ältere Messungen verlieren nach ~10 s ihren Einfluss
+    private static final double DECAY_NANOS = 10_000_000_000d;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    // EWMA als double-Bits, damit Messen und Auswählen ohne Sperre auskommen
+    private final AtomicLong ewmaBits = new AtomicLong(Double.doubleToRawLongBits(0));
+    private volatile long lastSampleNanos = System.nanoTime();
+
+    // Host als UTF-8, um Heartbeats ohne Allokation zuzuordnen
+    private final byte[] hostBytes;
+
+    // Zuletzt per Heartbeat gemeldete Werte
+    private volatile int reportedConnections;
+    private volatile int reportedQueueDepth;
+    private volatile int reportedP99Micros;
+    private volatile int reportedDbBacklog;
+    private volatile boolean draining;
+
+    // Kennzahlen für die Metriken (siehe LoadBalancer), werden nie zurückgesetzt und nicht serialisiert
+    final transient LongAdder forwardedBytes = new LongAdder();
+    final transient LongAdder connectRetries = new LongAdder();
+    final transient LatencyHistogram connectLatency = new LatencyHistogram(); // Mikrosekunden bis zur nutzbaren Verbindung
+    final transient LatencyHistogram heartbeatJitter = new LatencyHistogram(); // Abweichung vom erwarteten Intervall in Mikrosekunden
+
+    // Zustand des FailureDetector, geschrieben nur vom Heartbeat-Thread
+    volatile long lastHeartbeatNanos;
+    volatile double intervalMean;
+    volatile double intervalVariance;
+
+    public Server(String key, Integer value) {
+        super(key, value);
+        this.hostBytes = key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Prüft, ob ein dekodierter Heartbeat zu diesem Server gehört.
+     *
+     * @param heartbeat Der Heartbeat.
+     * @return true bei gleichem Host und Port.
+     */
+    boolean matches(Heartbeat heartbeat) {
+        return heartbeat.getPort() == getValue() && heartbeat.hostEquals(hostBytes);
+    }
+
+    /**
+     * Übernimmt die gemeldete Auslastung aus einem Heartbeat.
+     *
+     * @param heartbeat Der Heartbeat.
+     */
+    void update(Heartbeat heartbeat) {
+        reportedConnections = heartbeat.getActiveConnections();
+        reportedQueueDepth = heartbeat.getQueueDepth();
+        reportedP99Micros = heartbeat.getP99Micros();
+        reportedDbBacklog = heartbeat.getDbBacklog();
+        draining = heartbeat.isDraining();
+    }
+
+    /**
+     * Ein Server im Drain-Modus nimmt keine neuen Anfragen mehr an.
+     *
+     * @return true, wenn der Server keine neuen Anfragen erhalten soll.
+     */
+    boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * Markiert den Beginn einer weitergeleiteten Anfrage bzw. Verbindung.
+     */
+    void requestStarted() {
+        inFlight.incrementAndGet();
+    }
+
+    /**
+     * Markiert das Ende einer weitergeleiteten Anfrage bzw. Verbindung.
+     */
+    void requestFinished() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Nimmt eine gemessene Antwortzeit auf. Spitzen werden sofort übernommen, danach klingt
+     * der Wert abhängig von der vergangenen Zeit ab. Gleichzeitige Messungen werden per CAS
+     * eingearbeitet.
+     *
+     * @param latencyNanos Die Antwortzeit in Nanosekunden.
+     */
+    void recordLatency(long latencyNanos) {
+        long now = System.nanoTime();
+        double weight = Math.exp(-(now - lastSampleNanos) / DECAY_NANOS);
+        while (true) {
+            long bits = ewmaBits.get();
+            double ewma = Double.longBitsToDouble(bits);
+            double next = latencyNanos > ewma ? latencyNanos : ewma * weight + latencyNanos * (1 - weight);
+            if (ewmaBits.compareAndSet(bits, Double.doubleToRawLongBits(next))) {
+                break;
+            }
+        }
+        lastSampleNanos = now;
+    }
+
+    int getInFlight() {
+        return inFlight.get();
+    }
+
+    double getEwmaNanos() {
+        return Double.longBitsToDouble(ewmaBits.get());
+    }
+
+    /**
+     * Last eines Servers: eigene offene Anfragen plus die vom Server gemeldete Warteschlange.
+     *
+     * @return Die Last, kleiner ist besser.
+     */
+    int getLoad() {
+        return getInFlight() + reportedQueueDepth;
+    }
+
+    /**
+     * Kosten eines Servers für die lastabhängige Auswahl: erwartete Antwortzeit multipliziert
+     * mit der Last. Solange keine eigene Messung vorliegt, gilt die gemeldete p99-Latenz.
+     *
+     * @return Die Kosten, kleiner ist besser.
+     */
+    double getCost() {
+        double latency = getEwmaNanos();
+        if (latency == 0) {
+            latency = reportedP99Micros * 1000d;
+        }
+        return (latency + 1) * (getLoad() + 1);
+    }
+
+    /**
+     * @return Kurzbeschreibung der aktuellen Auslastung für das Log.
+     */
+    String describeLoad() {
+        return String.format("%s:%d (offen %d, gemeldet: Verbindungen %d, Warteschlange %d, p99 %d us, DB %d%s)",
+                getKey(), getValue(), getInFlight(), reportedConnections, reportedQueueDepth, reportedP99Micros,
+                reportedDbBacklog, draining ? ", Drain" : "");
+    }
+}
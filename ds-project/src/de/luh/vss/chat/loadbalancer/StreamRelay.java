@@ -0,0 +1,443 @@
+package de.luh.vss.chat.loadbalancer;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.luh.vss.chat.common.Message;
+import de.luh.vss.chat.common.Message.ErrorResponse;
+import de.luh.vss.chat.common.Message.WindowUpdate;
+import de.luh.vss.chat.common.MessageCodec;
+import de.luh.vss.chat.common.MessageCodec.Frame;
+import de.luh.vss.chat.common.MessageType;
+
+/**
+ * Leitet die Stream-Frames (siehe {@link MessageCodec#FLAG_STREAM}) aller Clients über eine
+ * einzige, dauerhafte Verbindung an einen Server weiter. Jeder Stream eines Clients erhält auf
+ * dieser Verbindung eine eigene Stream-ID; Frames werden nur in der Stream-ID umgeschrieben und
+ * nicht dekodiert. Antworten und {@link WindowUpdate}s des Servers gehen mit der Stream-ID des
+ * Clients zurück, die Flusskontrolle des ServerNode reicht so bis zum Client durch.
+ *
+ * Ein Stream belegt seine Backend-Stream-ID nur, solange Anfragen unbeantwortet oder Credits
+ * nicht zurückgegeben sind. Bricht die Verbindung ab, erhalten alle offenen Anfragen eine
+ * {@link ErrorResponse} und ihre Credits zurück; die nächste Anfrage baut die Verbindung neu auf.
+ */
+class StreamRelay {
+    private static final Logger logger = Logger.getLogger(StreamRelay.class.getName());
+    private static final int BUFFER_SIZE = 1024;
+    // Schreibt die Antworten je Client-Verbindung, damit ein langsamer Client den Leser nicht aufhält
+    private static final ExecutorService WRITERS = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final Server server;
+    private final LoadBalancer loadBalancer;
+    // Backend-Stream-ID -> Stream eines Clients, gelesen vom Leser-Thread der Verbindung
+    private final Map<Integer, Route> routes = new ConcurrentHashMap<>();
+    private final Object writeLock = new Object();
+    private SocketChannel channel; // guarded by writeLock, null solange nicht verbunden
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(BUFFER_SIZE); // guarded by writeLock
+    private int nextStreamId; // guarded by writeLock
+
+    /**
+     * @param server       Der Server, an den weitergeleitet wird.
+     * @param loadBalancer Für die Kennzahlen der weitergeleiteten Bytes.
+     */
+    StreamRelay(Server server, LoadBalancer loadBalancer) {
+        this.server = server;
+        this.loadBalancer = loadBalancer;
+    }
+
+    /**
+     * Leitet einen Stream-Frame des Clients an den Server weiter. Wird nur vom Leser der
+     * Client-Verbindung aufgerufen; der Frame ist danach nicht mehr nötig.
+     *
+     * @param client Die Client-Verbindung.
+     * @param frame  Ein Frame mit Stream-ID, keine WindowUpdates.
+     */
+    void send(Client client, Frame frame) {
+        Route route;
+        String rejection = null;
+        synchronized (client) {
+            ClientStream stream = client.streams.get(frame.streamId());
+            if (stream == null && client.streams.size() >= client.maxStreams) {
+                rejection = "Too many streams";
+            } else if (stream != null && stream.window <= 0) {
+                rejection = "Stream window exceeded";
+            }
+            if (rejection != null) {
+                route = null;
+            } else {
+                if (stream == null) {
+                    stream = new ClientStream(frame.streamId());
+                    client.streams.put(stream.id, stream);
+                }
+                route = stream.routeTo(this);
+                if (route == null) {
+                    route = new Route(this, client, stream);
+                    stream.routes.add(route);
+                }
+                stream.window -= frame.length();
+                route.credit += frame.length();
+                route.pending.add(new Pending(frame.correlationId(), System.nanoTime()));
+            }
+        }
+        if (rejection != null) {
+            client.reply(frame.streamId(), frame.correlationId(), new ErrorResponse(rejection), frame.length());
+            return;
+        }
+        server.requestStarted();
+        SocketChannel target = null;
+        try {
+            synchronized (writeLock) {
+                if (route.closed) {
+                    // Die Verbindung ist inzwischen abgebrochen, die Anfrage wurde schon mit einem Fehler beantwortet
+                    return;
+                }
+                if (channel == null) {
+                    channel = connect();
+                }
+                target = channel;
+                if (route.backendStreamId == MessageCodec.NO_STREAM) {
+                    nextStreamId = nextStreamId == Integer.MAX_VALUE ? 1 : nextStreamId + 1;
+                    route.backendStreamId = nextStreamId;
+                    routes.put(route.backendStreamId, route);
+                }
+                int size = MessageCodec.HEADER_SIZE + frame.length();
+                if (writeBuffer.capacity() < size) {
+                    writeBuffer = ByteBuffer.allocate(size);
+                }
+                ByteBuffer buffer = writeBuffer.clear();
+                frame.relay(buffer, route.backendStreamId);
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+            }
+            loadBalancer.recordForwardedBytes(MessageCodec.HEADER_SIZE + frame.length());
+            server.forwardedBytes.add(MessageCodec.HEADER_SIZE + frame.length());
+        } catch (IOException e) {
+            logger.severe("Fehler beim Weiterleiten an " + server.getKey() + ":" + server.getValue() + " - " + e.getMessage());
+            if (target != null) {
+                fail(target);
+            } else {
+                // Ohne Verbindung gibt es keinen Leser, der die Anfrage beantworten könnte
+                close(route);
+            }
+        }
+    }
+
+    /**
+     * Baut die Verbindung zum Server auf und startet ihren Leser.
+     */
+    private SocketChannel connect() throws IOException {
+        SocketChannel opened = SocketChannel.open();
+        try {
+            opened.socket().connect(new InetSocketAddress(server.getKey(), server.getValue()), BackendPool.CONNECT_TIMEOUT);
+            opened.socket().setTcpNoDelay(true);
+        } catch (IOException e) {
+            opened.close();
+            throw e;
+        }
+        Thread.ofVirtual().name("stream-relay-" + server.getKey() + ":" + server.getValue()).start(() -> read(opened));
+        return opened;
+    }
+
+    /**
+     * Liest die Frames des Servers und reicht sie an die Clients weiter, bis die Verbindung
+     * endet.
+     */
+    private void read(SocketChannel backend) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(backend.socket().getInputStream()));
+            ByteBuffer buffer = null;
+            while (true) {
+                int word = in.readInt();
+                if (!MessageCodec.isFrameHeader(word)) {
+                    throw new IOException("Antwort ohne Frame auf einer Stream-Verbindung");
+                }
+                Frame frame = MessageCodec.readFrame(in, word, buffer);
+                buffer = frame.body();
+                Route route = routes.get(frame.streamId());
+                if (route == null) {
+                    if (logger.isLoggable(Level.FINE)) {
+                        logger.fine("Frame für unbekannten Stream " + frame.streamId() + " von " + server);
+                    }
+                    continue;
+                }
+                loadBalancer.recordForwardedBytes(MessageCodec.HEADER_SIZE + frame.length());
+                server.forwardedBytes.add(MessageCodec.HEADER_SIZE + frame.length());
+                route.deliver(frame);
+            }
+        } catch (EOFException e) {
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine("Stream-Verbindung zu " + server + " geschlossen");
+            }
+        } catch (IOException | IllegalStateException e) {
+            logger.severe("Fehler auf der Stream-Verbindung zu " + server.getKey() + ":" + server.getValue() + " - " + e.getMessage());
+        } finally {
+            fail(backend);
+        }
+    }
+
+    /**
+     * Schließt eine abgebrochene Verbindung und beantwortet alle Anfragen, die über sie liefen.
+     */
+    private void fail(SocketChannel backend) {
+        List<Route> failed;
+        synchronized (writeLock) {
+            if (channel == backend) {
+                channel = null;
+            }
+            failed = new ArrayList<>(routes.values());
+            routes.clear();
+            // Anfragen, die noch auf writeLock warten, dürfen nicht mehr über eine neue Verbindung gehen
+            for (Route route : failed) {
+                route.closed = true;
+            }
+        }
+        try {
+            backend.close();
+        } catch (IOException ignored) {
+        }
+        for (Route route : failed) {
+            close(route);
+        }
+    }
+
+    /**
+     * Beantwortet die offenen Anfragen eines Streams mit einem Fehler, gibt seine Credits zurück
+     * und trennt ihn von dieser Verbindung.
+     */
+    private void close(Route route) {
+        List<Pending> unanswered;
+        int credit;
+        synchronized (route.client) {
+            if (route.released) {
+                return;
+            }
+            unanswered = new ArrayList<>(route.pending);
+            credit = route.credit;
+            route.pending.clear();
+            route.credit = 0;
+            route.stream.window += credit;
+            route.release();
+        }
+        for (int i = 0; i < unanswered.size(); i++) {
+            server.requestFinished();
+        }
+        route.client.fail(route.stream.id, unanswered, credit);
+    }
+
+    /**
+     * Die Client-Seite: eine Verbindung mit ihren Streams und ihrer Warteschlange für Antworten.
+     */
+    static final class Client {
+        private final DataOutputStream out;
+        private final int maxStreams;
+        private final Map<Integer, ClientStream> streams = new HashMap<>(); // guarded by this
+        private final Queue<byte[]> outbound = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean writing = new AtomicBoolean();
+        private volatile boolean closed;
+
+        /**
+         * @param out        Die gepufferte Ausgabe der Client-Verbindung; andere Schreiber
+         *                   synchronisieren ebenfalls auf ihr.
+         * @param maxStreams Streams mit offenen Anfragen, die der Client gleichzeitig haben darf.
+         */
+        Client(DataOutputStream out, int maxStreams) {
+            this.out = out;
+            this.maxStreams = maxStreams;
+        }
+
+        /**
+         * Verwirft ab jetzt alle Antworten. Aufgerufen, wenn die Client-Verbindung endet.
+         */
+        void close() {
+            closed = true;
+            outbound.clear();
+        }
+
+        /**
+         * Beantwortet eine Anfrage, die nicht weitergeleitet wird, und gibt ihre Credits zurück.
+         */
+        void reply(int streamId, int correlationId, Message response, int credit) {
+            WindowUpdate update = new WindowUpdate(credit);
+            ByteBuffer buffer = ByteBuffer.allocate(MessageCodec.encodedSize(response) + MessageCodec.encodedSize(update)
+                    + 2 * MessageCodec.STREAM_ID_SIZE + MessageCodec.CORRELATION_SIZE);
+            MessageCodec.encode(response, buffer, null, streamId, correlationId);
+            MessageCodec.encode(update, buffer, null, streamId, MessageCodec.NO_CORRELATION);
+            write(Arrays.copyOf(buffer.array(), buffer.position()));
+        }
+
+        /**
+         * Beantwortet die Anfragen eines Streams, die mit einer abgebrochenen Backend-Verbindung
+         * verloren sind, und gibt ihre Credits mit einem WindowUpdate zurück.
+         */
+        private void fail(int streamId, List<Pending> unanswered, int credit) {
+            ErrorResponse error = new ErrorResponse("Forwarding failed");
+            WindowUpdate update = new WindowUpdate(credit);
+            ByteBuffer buffer = ByteBuffer.allocate(unanswered.size()
+                    * (MessageCodec.encodedSize(error) + MessageCodec.STREAM_ID_SIZE + MessageCodec.CORRELATION_SIZE)
+                    + MessageCodec.encodedSize(update) + MessageCodec.STREAM_ID_SIZE);
+            for (Pending request : unanswered) {
+                MessageCodec.encode(error, buffer, null, streamId, request.correlationId);
+            }
+            if (credit > 0) {
+                MessageCodec.encode(update, buffer, null, streamId, MessageCodec.NO_CORRELATION);
+            }
+            if (buffer.position() > 0) {
+                write(Arrays.copyOf(buffer.array(), buffer.position()));
+            }
+        }
+
+        private void write(byte[] frame) {
+            if (closed) {
+                return;
+            }
+            outbound.add(frame);
+            if (writing.compareAndSet(false, true)) {
+                WRITERS.execute(this::drain);
+            }
+        }
+
+        /**
+         * Schreibt alle wartenden Antworten mit einem Flush, bis die Warteschlange leer ist.
+         */
+        private void drain() {
+            try {
+                do {
+                    synchronized (out) {
+                        byte[] frame;
+                        while ((frame = outbound.poll()) != null) {
+                            out.write(frame);
+                        }
+                        out.flush();
+                    }
+                    writing.set(false);
+                } while (!outbound.isEmpty() && writing.compareAndSet(false, true));
+            } catch (IOException e) {
+                close();
+                writing.set(false);
+                if (logger.isLoggable(Level.FINE)) {
+                    logger.fine("Antwort an Client nicht zustellbar: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Ein Stream eines Clients mit seinem Fenster und den Servern, an die er gerade Anfragen hat.
+     */
+    private static final class ClientStream {
+        private final int id;
+        private int window = MessageCodec.INITIAL_STREAM_WINDOW; // guarded by the client
+        private final List<Route> routes = new ArrayList<>(2); // guarded by the client
+
+        ClientStream(int id) {
+            this.id = id;
+        }
+
+        Route routeTo(StreamRelay relay) {
+            for (Route route : routes) {
+                if (route.relay == relay) {
+                    return route;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Ein Stream eines Clients auf der Verbindung zu diesem Server.
+     */
+    private static final class Route {
+        private final StreamRelay relay;
+        private final Client client;
+        private final ClientStream stream;
+        private volatile int backendStreamId = MessageCodec.NO_STREAM; // vergeben unter writeLock
+        private final Queue<Pending> pending = new ArrayDeque<>(); // offene Anfragen in Reihenfolge, guarded by client
+        private int credit; // noch nicht zurückgegebene Bytes, guarded by client
+        private boolean released; // guarded by client
+        private volatile boolean closed; // über diese Route wird nichts mehr gesendet
+
+        Route(StreamRelay relay, Client client, ClientStream stream) {
+            this.relay = relay;
+            this.client = client;
+            this.stream = stream;
+        }
+
+        /**
+         * Reicht eine Antwort oder ein WindowUpdate des Servers mit der Stream-ID des Clients
+         * weiter. Sind alle Anfragen beantwortet und alle Credits zurück, gibt der Stream seine
+         * Backend-Stream-ID frei.
+         */
+        void deliver(Frame frame) throws IOException {
+            byte[] bytes = new byte[MessageCodec.HEADER_SIZE + frame.length()];
+            frame.relay(ByteBuffer.wrap(bytes), stream.id);
+            boolean update = frame.type() == MessageType.WINDOW_UPDATE;
+            int increment = update ? ((WindowUpdate) frame.message()).getIncrement() : 0;
+            Pending answered = null;
+            synchronized (client) {
+                if (update) {
+                    credit -= increment;
+                    stream.window += increment;
+                    if (credit <= 0 && pending.isEmpty()) {
+                        release();
+                        relay.routes.remove(backendStreamId, this);
+                    }
+                } else {
+                    answered = pending.poll();
+                }
+            }
+            if (answered != null) {
+                relay.server.recordLatency(System.nanoTime() - answered.sentNanos);
+                relay.server.requestFinished();
+            }
+            client.write(bytes);
+        }
+
+        /**
+         * Trennt den Stream von diesem Server; hat er keine weiteren Server, vergisst ihn der
+         * Client. Aufgerufen unter der Sperre des Clients.
+         */
+        private void release() {
+            released = true;
+            closed = true;
+            stream.routes.remove(this);
+            if (stream.routes.isEmpty() && stream.window == MessageCodec.INITIAL_STREAM_WINDOW) {
+                client.streams.remove(stream.id);
+            }
+        }
+    }
+
+    /**
+     * Eine weitergeleitete, noch unbeantwortete Anfrage.
+     */
+    private static final class Pending {
+        private final int correlationId;
+        private final long sentNanos;
+
+        Pending(int correlationId, long sentNanos) {
+            this.correlationId = correlationId;
+            this.sentNanos = sentNanos;
+        }
+    }
+}
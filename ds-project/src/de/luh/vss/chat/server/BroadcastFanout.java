@@ -0,0 +1,287 @@
+package de.luh.vss.chat.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.luh.vss.chat.common.Message.ChatMessage;
+
+/**
+ * Delivers messages addressed to {@code UserId.BROADCAST} to every user with a lease on this
+ * node, over UDP to the endpoint from the user's REGISTER_REQUEST.
+ *
+ * A broadcast is serialized once; every recipient's queue only receives a reference to the
+ * shared bytes. One sender thread serves the recipients round-robin, one datagram per turn, so a
+ * recipient with a long backlog or failing sends cannot hold up the others. The queues are
+ * bounded: when a recipient's queue is full its oldest message is dropped, and a recipient that
+ * drops more than a full queue without receiving anything, or whose sends fail repeatedly, is
+ * evicted. Its backlog is discarded and it gets no broadcasts for {@code evictMillis}.
+ *
+ * Chats for a single user on this node (see {@link SessionDirectory}) use the same queues via
+ * {@link #deliver}.
+ */
+class BroadcastFanout implements Runnable {
+    private static final Logger logger = Logger.getLogger(BroadcastFanout.class.getName());
+    private static final long STATS_INTERVAL = 10000;
+
+    private final LeaseRegistry leases;
+    private final DatagramChannel channel;
+    private final int queueLimit;
+    private final int evictFailures;
+    private final long evictNanos;
+
+    // Guarded by this
+    private final Map<Integer, Recipient> recipients = new HashMap<>();
+    private final ArrayDeque<Recipient> ready = new ArrayDeque<>();
+    private boolean running = true;
+    private long broadcasts = 0;
+    private long queued = 0;
+    private long dropped = 0;
+    private long evictions = 0;
+    private long sent = 0;
+    private long failed = 0;
+
+    /**
+     * @param leases        the online users of this node
+     * @param queueLimit    maximum number of undelivered broadcasts per recipient
+     * @param evictFailures consecutive failed sends after which a recipient is evicted
+     * @param evictMillis   time an evicted recipient is excluded from broadcasts
+     */
+    BroadcastFanout(LeaseRegistry leases, int queueLimit, int evictFailures, long evictMillis) throws IOException {
+        this.leases = leases;
+        this.queueLimit = queueLimit;
+        this.evictFailures = evictFailures;
+        this.evictNanos = evictMillis * 1_000_000L;
+        this.channel = DatagramChannel.open();
+    }
+
+    /**
+     * Queues a message for every online user. Never blocks on the network.
+     *
+     * @param msg the message addressed to {@code UserId.BROADCAST}
+     * @return the number of users the message was queued for
+     */
+    int broadcast(ChatMessage msg) throws IOException {
+        ByteBuffer payload = ByteBuffer.wrap(msg.serializeMessage()).asReadOnlyBuffer();
+        long now = System.nanoTime();
+        int[] count = {0};
+        synchronized (this) {
+            broadcasts++;
+            leases.forEachOnline((uid, endpoint) -> {
+                if (offer(uid, endpoint, payload, now)) {
+                    count[0]++;
+                }
+            });
+            queued += count[0];
+            if (count[0] > 0) {
+                notifyAll();
+            }
+        }
+        return count[0];
+    }
+
+    /**
+     * Queues a message for one user.
+     *
+     * @param uid      the recipient
+     * @param endpoint the recipient's UDP endpoint
+     * @param msg      the message
+     * @return false if the recipient is evicted
+     */
+    boolean deliver(int uid, InetSocketAddress endpoint, ChatMessage msg) throws IOException {
+        ByteBuffer payload = ByteBuffer.wrap(msg.serializeMessage()).asReadOnlyBuffer();
+        synchronized (this) {
+            if (!offer(uid, endpoint, payload, System.nanoTime())) {
+                return false;
+            }
+            queued++;
+            notifyAll();
+            return true;
+        }
+    }
+
+    /**
+     * Queues the payload for one user, dropping its oldest message if the queue is full.
+     * Called with the lock held.
+     *
+     * @return false if the user is evicted
+     */
+    private boolean offer(int uid, InetSocketAddress endpoint, ByteBuffer payload, long now) {
+        Recipient recipient = recipients.get(uid);
+        if (recipient == null) {
+            recipient = new Recipient(uid);
+            recipients.put(uid, recipient);
+        }
+        if (recipient.evictedUntil != 0) {
+            if (now - recipient.evictedUntil < 0) {
+                return false;
+            }
+            recipient.evictedUntil = 0;
+        }
+        recipient.endpoint = endpoint;
+        if (recipient.queue.size() >= queueLimit) {
+            recipient.queue.pollFirst();
+            dropped++;
+            if (++recipient.dropsSinceSend > queueLimit) {
+                evict(recipient, now, "not keeping up");
+                return false;
+            }
+        }
+        recipient.queue.addLast(payload);
+        if (!recipient.scheduled) {
+            recipient.scheduled = true;
+            ready.addLast(recipient);
+        }
+        return true;
+    }
+
+    /**
+     * Discards a recipient's backlog and excludes it from broadcasts for a while. Called with
+     * the lock held.
+     */
+    private void evict(Recipient recipient, long now, String reason) {
+        recipient.queue.clear();
+        recipient.dropsSinceSend = 0;
+        recipient.failures = 0;
+        recipient.evictedUntil = (now + evictNanos) | 1; // 0 means not evicted
+        evictions++;
+        logger.warning(String.format("Broadcast recipient %d evicted: %s", recipient.uid, reason));
+    }
+
+    /**
+     * Sends the queued broadcasts until {@link #close()} is called.
+     */
+    @Override
+    public void run() {
+        long nextStats = System.nanoTime() + STATS_INTERVAL * 1_000_000L;
+        while (true) {
+            Recipient recipient;
+            ByteBuffer payload;
+            InetSocketAddress endpoint;
+            synchronized (this) {
+                while (true) {
+                    if (System.nanoTime() - nextStats >= 0) {
+                        prune();
+                        logStats();
+                        nextStats = System.nanoTime() + STATS_INTERVAL * 1_000_000L;
+                    }
+                    if (!running || !ready.isEmpty()) {
+                        break;
+                    }
+                    try {
+                        wait(STATS_INTERVAL);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!running) {
+                    return;
+                }
+                recipient = ready.pollFirst();
+                payload = recipient.queue.pollFirst();
+                endpoint = recipient.endpoint;
+                if (recipient.queue.isEmpty()) {
+                    recipient.scheduled = false;
+                } else {
+                    // Back of the line, so every other recipient gets its turn first
+                    ready.addLast(recipient);
+                }
+            }
+            if (payload != null) {
+                send(recipient, payload, endpoint);
+            }
+        }
+    }
+
+    private void send(Recipient recipient, ByteBuffer payload, InetSocketAddress endpoint) {
+        boolean ok;
+        try {
+            channel.send(payload.duplicate(), endpoint);
+            ok = true;
+        } catch (IOException e) {
+            ok = false;
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine("Broadcast to " + endpoint + " failed: " + e.getMessage());
+            }
+        }
+        synchronized (this) {
+            if (ok) {
+                sent++;
+                recipient.failures = 0;
+                recipient.dropsSinceSend = 0;
+            } else {
+                failed++;
+                if (++recipient.failures >= evictFailures) {
+                    evict(recipient, System.nanoTime(), "send failed");
+                }
+            }
+        }
+    }
+
+    /**
+     * Forgets idle recipients that are no longer online and evictions that ran out. Called with
+     * the lock held.
+     */
+    private void prune() {
+        long now = System.nanoTime();
+        Iterator<Map.Entry<Integer, Recipient>> it = recipients.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, Recipient> entry = it.next();
+            Recipient recipient = entry.getValue();
+            boolean evicted = recipient.evictedUntil != 0 && now - recipient.evictedUntil < 0;
+            if (recipient.queue.isEmpty() && !evicted && leases.endpoint(entry.getKey()) == null) {
+                it.remove();
+            }
+        }
+    }
+
+    private void logStats() {
+        if (broadcasts > 0 && logger.isLoggable(Level.INFO)) {
+            logger.info(toString());
+        }
+    }
+
+    /**
+     * Stops the sender; queued broadcasts are discarded.
+     */
+    void close() {
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("Broadcast (messages %d, queued %d, sent %d, failed %d, dropped %d, evictions %d, recipients %d)",
+                broadcasts, queued, sent, failed, dropped, evictions, recipients.size());
+    }
+
+    /**
+     * Outbound state of one user. All fields are guarded by the fan-out's lock.
+     */
+    private static final class Recipient {
+        private final int uid;
+        private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>();
+        private InetSocketAddress endpoint;
+        private boolean scheduled;
+        private int dropsSinceSend;
+        private int failures;
+        private long evictedUntil; // nanoTime, 0 if not evicted
+
+        Recipient(int uid) {
+            this.uid = uid;
+        }
+    }
+}
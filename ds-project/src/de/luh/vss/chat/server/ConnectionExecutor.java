@@ -0,0 +1,142 @@
+package de.luh.vss.chat.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs request handlers with an explicit concurrency limit and a bounded queue. When both
+ * are exhausted, {@link #execute(Runnable)} and {@link #run(Runnable)} reject the task immediately
+ * so the caller can answer with an error instead of piling up threads. Connections take a slot
+ * only while one of their requests is handled, not while they wait for the next one.
+ */
+class ConnectionExecutor {
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final ThreadPoolExecutor pool;
+    private final int maxConcurrency;
+    private final int queueLimit;
+    private final AtomicInteger admitted = new AtomicInteger();
+
+    /**
+     * @param virtual        true for one virtual thread per task, false for a bounded platform thread pool
+     * @param maxConcurrency maximum number of handlers running at the same time
+     * @param queueLimit     maximum number of handlers waiting for a free slot
+     */
+    ConnectionExecutor(boolean virtual, int maxConcurrency, int queueLimit) {
+        this.maxConcurrency = maxConcurrency;
+        this.queueLimit = queueLimit;
+        if (virtual) {
+            this.executor = Executors.newVirtualThreadPerTaskExecutor();
+            this.permits = new Semaphore(maxConcurrency);
+            this.pool = null;
+        } else {
+            this.pool = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, 60, TimeUnit.SECONDS,
+                    queueLimit > 0 ? new ArrayBlockingQueue<>(queueLimit) : new SynchronousQueue<>(),
+                    new ThreadPoolExecutor.AbortPolicy());
+            this.pool.allowCoreThreadTimeOut(true);
+            this.executor = pool;
+            this.permits = null;
+        }
+    }
+
+    /**
+     * Runs a task if there is capacity left.
+     *
+     * @param task the connection handler
+     * @return false if the executor is saturated and the task was rejected
+     */
+    boolean execute(Runnable task) {
+        if (pool != null) {
+            try {
+                pool.execute(task);
+                return true;
+            } catch (RejectedExecutionException e) {
+                return false;
+            }
+        }
+        if (admitted.incrementAndGet() > maxConcurrency + queueLimit) {
+            admitted.decrementAndGet();
+            return false;
+        }
+        executor.execute(() -> {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                admitted.decrementAndGet();
+                return;
+            }
+            try {
+                task.run();
+            } finally {
+                permits.release();
+                admitted.decrementAndGet();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Handles one request of a connection and returns once it is done, so the connection keeps
+     * its request order. In virtual mode the task runs in the calling thread once a slot is free,
+     * in platform mode on the pool while the caller waits.
+     *
+     * @param task the request handler
+     * @return false if the executor is saturated and the task was not run
+     */
+    boolean run(Runnable task) {
+        if (pool != null) {
+            Future<?> future;
+            try {
+                future = pool.submit(task);
+            } catch (RejectedExecutionException e) {
+                return false;
+            }
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                future.cancel(true);
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+            return true;
+        }
+        if (admitted.incrementAndGet() > maxConcurrency + queueLimit) {
+            admitted.decrementAndGet();
+            return false;
+        }
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            admitted.decrementAndGet();
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        try {
+            task.run();
+        } finally {
+            permits.release();
+            admitted.decrementAndGet();
+        }
+        return true;
+    }
+
+    /**
+     * @return number of admitted tasks waiting for a free slot
+     */
+    int queueDepth() {
+        if (pool != null) {
+            return pool.getQueue().size();
+        }
+        return Math.max(0, admitted.get() - (maxConcurrency - permits.availablePermits()));
+    }
+}
@@ -0,0 +1,267 @@
+package de.luh.vss.chat.server;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.luh.vss.chat.common.LatencyHistogram;
+
+/**
+ * A small JDBC connection pool. Connections are validated when they were idle for a while,
+ * every connection caches its prepared statements, and connections held longer than the leak
+ * threshold are reported. A background task keeps at least {@code minSize} connections open.
+ */
+class ConnectionPool {
+    private static final Logger logger = Logger.getLogger(ConnectionPool.class.getName());
+    private static final long VALIDATION_INTERVAL = 5000; // validate connections idle for more than 5 seconds
+    private static final int VALIDATION_TIMEOUT = 1; // seconds
+    private static final int STATEMENT_CACHE_SIZE = 32;
+    private static final long MAINTENANCE_INTERVAL = 10000; // 10 seconds
+    private static final long STATS_INTERVAL = 60000; // 1 minute
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int minSize;
+    private final long maxWaitMillis;
+    private final long leakThresholdMillis;
+
+    private final Semaphore permits;
+    private final BlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final Set<PooledConnection> borrowed = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger total = new AtomicInteger();
+    private final LatencyHistogram waitMicros = new LatencyHistogram();
+    private final LongAdder timeouts = new LongAdder();
+    private final ScheduledExecutorService maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "connection-pool-maintenance");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * @param url                 JDBC URL
+     * @param user                database user
+     * @param password            database password
+     * @param minSize             connections kept open even when idle
+     * @param maxSize             maximum number of open connections
+     * @param maxWaitMillis       maximum time {@link #borrow()} waits for a free connection
+     * @param leakThresholdMillis connections borrowed longer than this are logged as leaks
+     */
+    ConnectionPool(String url, String user, String password, int minSize, int maxSize, long maxWaitMillis, long leakThresholdMillis) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.minSize = Math.min(minSize, maxSize);
+        this.maxWaitMillis = maxWaitMillis;
+        this.leakThresholdMillis = leakThresholdMillis;
+        this.permits = new Semaphore(maxSize, true);
+        maintenance.scheduleWithFixedDelay(this::maintain, 0, MAINTENANCE_INTERVAL, TimeUnit.MILLISECONDS);
+        maintenance.scheduleAtFixedRate(this::logStats, STATS_INTERVAL, STATS_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Borrows a connection, waiting up to the configured time if all connections are in use.
+     * The connection must be closed to return it to the pool.
+     *
+     * @return a validated connection
+     * @throws SQLException if no connection becomes available in time or none can be opened
+     */
+    PooledConnection borrow() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+                timeouts.increment();
+                throw new SQLException("Timeout waiting for a database connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a database connection", e);
+        }
+        waitMicros.record((System.nanoTime() - start) / 1000);
+        try {
+            PooledConnection conn = takeIdle();
+            if (conn == null) {
+                conn = open();
+            }
+            conn.borrowedAt = System.currentTimeMillis();
+            conn.borrower = Thread.currentThread().getName();
+            borrowed.add(conn);
+            return conn;
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Takes the most recently used idle connection, validating it if it was idle for long.
+     */
+    private PooledConnection takeIdle() {
+        PooledConnection conn;
+        while ((conn = idle.pollFirst()) != null) {
+            if (System.currentTimeMillis() - conn.returnedAt < VALIDATION_INTERVAL || conn.isValid()) {
+                return conn;
+            }
+            conn.closePhysical();
+        }
+        return null;
+    }
+
+    /**
+     * Opens a connection outside the pool for long-lived use, e.g. to LISTEN for notifications.
+     * It does not count against the pool size and must be closed by the caller.
+     */
+    Connection openUnpooled() throws SQLException {
+        return DriverManager.getConnection(url, user, password);
+    }
+
+    private PooledConnection open() throws SQLException {
+        PooledConnection conn = new PooledConnection(DriverManager.getConnection(url, user, password));
+        total.incrementAndGet();
+        return conn;
+    }
+
+    private void release(PooledConnection conn) {
+        borrowed.remove(conn);
+        if (conn.broken) {
+            conn.closePhysical();
+        } else {
+            conn.returnedAt = System.currentTimeMillis();
+            idle.offerFirst(conn);
+        }
+        permits.release();
+    }
+
+    /**
+     * Tops the pool up to its minimum size and reports connections that look leaked.
+     */
+    private void maintain() {
+        try {
+            while (total.get() < minSize && permits.tryAcquire()) {
+                try {
+                    PooledConnection conn = open();
+                    conn.returnedAt = System.currentTimeMillis();
+                    idle.offerLast(conn);
+                } finally {
+                    permits.release();
+                }
+            }
+        } catch (SQLException e) {
+            logger.warning("Connection pool could not open connection: " + e.getMessage());
+        }
+        long now = System.currentTimeMillis();
+        for (PooledConnection conn : borrowed) {
+            if (now - conn.borrowedAt > leakThresholdMillis) {
+                logger.warning(String.format("Possible connection leak: borrowed by %s for %d ms", conn.borrower, now - conn.borrowedAt));
+            }
+        }
+    }
+
+    private void logStats() {
+        if (logger.isLoggable(Level.INFO)) {
+            logger.info(toString());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ConnectionPool (open %d, idle %d, borrowed %d, wait mean %.0f us, wait p99 %d us, timeouts %d)",
+                total.get(), idle.size(), borrowed.size(), waitMicros.mean(), waitMicros.percentile(0.99), timeouts.sum());
+    }
+
+    /**
+     * A pooled connection with its own prepared-statement cache. Closing it returns it to the pool.
+     */
+    final class PooledConnection implements AutoCloseable {
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() <= STATEMENT_CACHE_SIZE) {
+                    return false;
+                }
+                try {
+                    eldest.getValue().close();
+                } catch (SQLException ignored) {
+                }
+                return true;
+            }
+        };
+        private volatile long borrowedAt;
+        private volatile String borrower;
+        private long returnedAt;
+        private boolean broken = false;
+
+        private PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        Connection connection() {
+            return connection;
+        }
+
+        /**
+         * Returns a cached prepared statement for the SQL, preparing it on first use.
+         *
+         * @param sql the statement
+         * @return the prepared statement, owned by this connection
+         * @throws SQLException if the statement cannot be prepared
+         */
+        PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement stmt = statements.get(sql);
+            if (stmt == null || stmt.isClosed()) {
+                stmt = connection.prepareStatement(sql);
+                statements.put(sql, stmt);
+            }
+            return stmt;
+        }
+
+        /**
+         * Marks the connection as unusable if the error indicates a lost connection
+         * (SQL state class 08), so it is closed instead of returned to the pool.
+         *
+         * @param e the error raised while using the connection
+         */
+        void check(SQLException e) {
+            if (e.getSQLState() == null || e.getSQLState().startsWith("08")) {
+                broken = true;
+            }
+        }
+
+        private boolean isValid() {
+            try {
+                return connection.isValid(VALIDATION_TIMEOUT);
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+
+        private void closePhysical() {
+            total.decrementAndGet();
+            try {
+                connection.close();
+            } catch (SQLException ignored) {
+            }
+        }
+
+        @Override
+        public void close() {
+            release(this);
+        }
+    }
+}
@@ -0,0 +1,402 @@
+package de.luh.vss.chat.server;
+
+import java.net.InetSocketAddress;
+import java.sql.BatchUpdateException;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.luh.vss.chat.common.LatencyHistogram;
+import de.luh.vss.chat.common.Message.RegisterRequest;
+
+/**
+ * Online users of this node. Every REGISTER_REQUEST creates or renews a lease for the user's UDP
+ * endpoint; leases that are not renewed within the TTL expire.
+ *
+ * The registry is split into shards with their own lock, map and hierarchical timing wheel, so
+ * renewals of different users rarely contend and a renewal costs O(1) no matter how many leases
+ * exist. A renewal only moves the lease's deadline; the lease stays in its wheel slot and is
+ * re-filed when that slot comes due, so there is no per-user timer to cancel.
+ *
+ * Changes are mirrored to the {@code users_online} table by the same background thread that
+ * advances the wheels: new users, changed endpoints and expiries are merged per user and written
+ * as one batch per tick. Renewals that change nothing are never written.
+ */
+class LeaseRegistry {
+    private static final Logger logger = Logger.getLogger(LeaseRegistry.class.getName());
+    private static final String UPSERT_SQL = "INSERT INTO users_online (uid, ip) VALUES (?, ?) " +
+                        "ON CONFLICT (uid) DO UPDATE SET ip = EXCLUDED.ip";
+    private static final String DELETE_SQL = "DELETE FROM users_online WHERE uid = ?";
+
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int WHEEL_LEVELS = 4; // 64^4 ticks, far beyond any lease
+    private static final long SYNC_RETRY_DELAY = 5000; // wait after a failed sync
+
+    private final ConnectionPool connectionPool;
+    private final long tickMillis;
+    private final long ttlTicks;
+    private final long startMillis = System.currentTimeMillis();
+    private final Shard[] shards;
+    private final AtomicInteger size = new AtomicInteger();
+    private final LatencyHistogram syncLatency = new LatencyHistogram();
+    private volatile Listener listener;
+
+    private final Object syncLock = new Object();
+    private Map<Integer, String> pendingSync = new LinkedHashMap<>();
+    private long nextSyncMillis = 0;
+
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "lease-registry");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * @param connectionPool pool used to sync {@code users_online}
+     * @param ttlMillis      time after which a lease that was not renewed expires
+     * @param tickMillis     resolution of the timing wheels and interval of the database sync
+     * @param shardCount     number of independently locked shards, rounded up to a power of two
+     */
+    LeaseRegistry(ConnectionPool connectionPool, long ttlMillis, long tickMillis, int shardCount) {
+        this.connectionPool = connectionPool;
+        this.tickMillis = tickMillis;
+        this.ttlTicks = Math.max(1, (ttlMillis + tickMillis - 1) / tickMillis);
+        this.shards = new Shard[Integer.highestOneBit(Math.max(1, shardCount - 1)) << 1];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard();
+        }
+        ticker.scheduleAtFixedRate(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates or renews the lease of the requesting user.
+     *
+     * @param request the REGISTER_REQUEST with the user's UDP endpoint
+     */
+    void renew(RegisterRequest request) {
+        int uid = request.getUserId().id();
+        InetSocketAddress endpoint = new InetSocketAddress(request.getUDPAddress(), request.getUDPPort());
+        long deadline = currentTick() + ttlTicks;
+        Shard shard = shardFor(uid);
+        synchronized (shard) {
+            Lease lease = shard.leases.get(uid);
+            if (lease == null) {
+                lease = new Lease(uid, endpoint, deadline);
+                shard.leases.put(uid, lease);
+                shard.schedule(lease);
+                size.incrementAndGet();
+                notifyListener(uid, true);
+            } else if (lease.endpoint.equals(endpoint)) {
+                lease.deadline = deadline;
+                return;
+            } else {
+                lease.endpoint = endpoint;
+                lease.deadline = deadline;
+            }
+            // Queued under the shard lock so a concurrent expiry cannot overtake it
+            queueSync(uid, endpoint.getAddress().getHostAddress());
+        }
+    }
+
+    /**
+     * @param uid the user ID
+     * @return the UDP endpoint of the user, or null if the user has no lease
+     */
+    InetSocketAddress endpoint(int uid) {
+        Shard shard = shardFor(uid);
+        synchronized (shard) {
+            Lease lease = shard.leases.get(uid);
+            return lease == null ? null : lease.endpoint;
+        }
+    }
+
+    /**
+     * @return the user IDs with a lease at the moment
+     */
+    List<Integer> online() {
+        List<Integer> uids = new ArrayList<>(size.get());
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                uids.addAll(shard.leases.keySet());
+            }
+        }
+        return uids;
+    }
+
+    /**
+     * Passes every user with a lease and its endpoint to the consumer, one shard at a time.
+     * The consumer runs under the shard's lock and must not call back into the registry.
+     *
+     * @param consumer receives the user ID and UDP endpoint
+     */
+    void forEachOnline(BiConsumer<Integer, InetSocketAddress> consumer) {
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                for (Lease lease : shard.leases.values()) {
+                    consumer.accept(lease.uid, lease.endpoint);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the listener informed when a user comes online or its lease expires. It is called
+     * under the lock of the user's shard, so for every user it sees the changes in order, and
+     * must not block or call back into the registry.
+     *
+     * @param listener the listener, or null
+     */
+    void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    private void notifyListener(int uid, boolean online) {
+        Listener current = listener;
+        if (current != null) {
+            current.changed(uid, online);
+        }
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    /**
+     * @return duration of every users_online batch write in microseconds
+     */
+    LatencyHistogram syncLatency() {
+        return syncLatency;
+    }
+
+    /**
+     * Writes the remaining changes and stops the background thread.
+     */
+    void close() {
+        ticker.shutdown();
+        try {
+            ticker.awaitTermination(tickMillis * 2, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sync();
+    }
+
+    private long currentTick() {
+        return (System.currentTimeMillis() - startMillis) / tickMillis;
+    }
+
+    private Shard shardFor(int uid) {
+        return shards[(uid ^ uid >>> 16) & (shards.length - 1)];
+    }
+
+    /**
+     * Advances all wheels to the current tick, expires due leases and syncs the changes.
+     */
+    private void tick() {
+        try {
+            long now = currentTick();
+            List<Lease> expired = new ArrayList<>();
+            for (Shard shard : shards) {
+                synchronized (shard) {
+                    shard.advance(now, expired);
+                }
+            }
+            if (!expired.isEmpty() && logger.isLoggable(Level.INFO)) {
+                logger.info(String.format("%d leases expired, %d users online", expired.size(), size.get()));
+            }
+            sync();
+        } catch (RuntimeException e) {
+            logger.severe("Lease registry: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Records the latest state of a user for the next sync.
+     *
+     * @param ip the user's address, or null if the user went offline
+     */
+    private void queueSync(int uid, String ip) {
+        synchronized (syncLock) {
+            pendingSync.put(uid, ip);
+        }
+    }
+
+    /**
+     * Writes all pending changes as one batch. Failed changes are queued again unless a newer
+     * change for the same user arrived meanwhile, and syncing pauses for a while.
+     */
+    private void sync() {
+        Map<Integer, String> batch;
+        synchronized (syncLock) {
+            if (pendingSync.isEmpty() || System.currentTimeMillis() < nextSyncMillis) {
+                return;
+            }
+            batch = pendingSync;
+            pendingSync = new LinkedHashMap<>();
+        }
+        long start = System.nanoTime();
+        Map<Integer, String> failed = write(batch);
+        syncLatency.record((System.nanoTime() - start) / 1000);
+        if (!failed.isEmpty()) {
+            synchronized (syncLock) {
+                nextSyncMillis = System.currentTimeMillis() + SYNC_RETRY_DELAY;
+                for (Map.Entry<Integer, String> entry : failed.entrySet()) {
+                    pendingSync.putIfAbsent(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the changes that could not be written because the database was unavailable
+     */
+    private Map<Integer, String> write(Map<Integer, String> batch) {
+        try (ConnectionPool.PooledConnection conn = connectionPool.borrow()) {
+            PreparedStatement upsert = conn.prepare(UPSERT_SQL);
+            PreparedStatement delete = conn.prepare(DELETE_SQL);
+            try {
+                for (Map.Entry<Integer, String> entry : batch.entrySet()) {
+                    if (entry.getValue() == null) {
+                        delete.setInt(1, entry.getKey());
+                        delete.addBatch();
+                    } else {
+                        upsert.setInt(1, entry.getKey());
+                        upsert.setString(2, entry.getValue());
+                        upsert.addBatch();
+                    }
+                }
+                upsert.executeBatch();
+                delete.executeBatch();
+            } catch (BatchUpdateException e) {
+                // Rows rejected by the database (e.g. unknown uid) are dropped, the rest retried one by one
+                upsert.clearBatch();
+                delete.clearBatch();
+                for (Map.Entry<Integer, String> entry : batch.entrySet()) {
+                    try {
+                        writeRow(upsert, delete, entry.getKey(), entry.getValue());
+                    } catch (SQLException rowError) {
+                        conn.check(rowError);
+                        logger.warning("users_online sync failed for " + entry.getKey() + ": " + rowError.getMessage());
+                    }
+                }
+            } catch (SQLException e) {
+                conn.check(e);
+                throw e;
+            }
+            return Map.of();
+        } catch (SQLException e) {
+            logger.severe("Database Error: " + e.getMessage());
+            return batch;
+        }
+    }
+
+    private static void writeRow(PreparedStatement upsert, PreparedStatement delete, int uid, String ip) throws SQLException {
+        if (ip == null) {
+            delete.setInt(1, uid);
+            delete.executeUpdate();
+        } else {
+            upsert.setInt(1, uid);
+            upsert.setString(2, ip);
+            upsert.executeUpdate();
+        }
+    }
+
+    /**
+     * Informed about users coming online and going offline (see {@link #setListener}).
+     */
+    interface Listener {
+        void changed(int uid, boolean online);
+    }
+
+    /**
+     * A user's lease. Leases in the same wheel slot form a singly linked list.
+     */
+    private static final class Lease {
+        private final int uid;
+        private InetSocketAddress endpoint;
+        private long deadline; // in ticks
+        private Lease next;
+
+        Lease(int uid, InetSocketAddress endpoint, long deadline) {
+            this.uid = uid;
+            this.endpoint = endpoint;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * Leases of a part of the user IDs with their hierarchical timing wheel. Level {@code l}
+     * has 64 slots of 64^l ticks each; a lease is filed at the lowest level whose range covers
+     * its deadline and moves down a level whenever its slot on a higher level comes due.
+     * All access is synchronized on the shard.
+     */
+    private final class Shard {
+        private final Map<Integer, Lease> leases = new HashMap<>();
+        private final Lease[][] wheels = new Lease[WHEEL_LEVELS][WHEEL_SIZE];
+        private long tick = currentTick();
+
+        void schedule(Lease lease) {
+            long delta = Math.max(1, lease.deadline - tick);
+            int level = 0;
+            while (level < WHEEL_LEVELS - 1 && delta >= 1L << (WHEEL_BITS * (level + 1))) {
+                level++;
+            }
+            long due = Math.max(lease.deadline, tick + 1);
+            int slot = (int) (due >>> (WHEEL_BITS * level)) & WHEEL_MASK;
+            lease.next = wheels[level][slot];
+            wheels[level][slot] = lease;
+        }
+
+        /**
+         * Processes every tick up to {@code now}.
+         *
+         * @param expired receives the leases that expired and were removed
+         */
+        void advance(long now, List<Lease> expired) {
+            while (tick < now) {
+                tick++;
+                // Move the due slots of the higher levels down before the level 0 slot fires
+                for (int level = 1; level < WHEEL_LEVELS && (tick & ((1L << (WHEEL_BITS * level)) - 1)) == 0; level++) {
+                    int slot = (int) (tick >>> (WHEEL_BITS * level)) & WHEEL_MASK;
+                    Lease lease = wheels[level][slot];
+                    wheels[level][slot] = null;
+                    while (lease != null) {
+                        Lease next = lease.next;
+                        schedule(lease);
+                        lease = next;
+                    }
+                }
+                int slot = (int) tick & WHEEL_MASK;
+                Lease lease = wheels[0][slot];
+                wheels[0][slot] = null;
+                while (lease != null) {
+                    Lease next = lease.next;
+                    if (lease.deadline <= tick) {
+                        leases.remove(lease.uid);
+                        size.decrementAndGet();
+                        queueSync(lease.uid, null);
+                        notifyListener(lease.uid, false);
+                        expired.add(lease);
+                    } else {
+                        // Renewed since it was filed
+                        schedule(lease);
+                    }
+                    lease = next;
+                }
+            }
+        }
+    }
+}
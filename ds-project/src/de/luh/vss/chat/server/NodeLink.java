@@ -0,0 +1,224 @@
+package de.luh.vss.chat.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import de.luh.vss.chat.common.Message;
+import de.luh.vss.chat.common.Message.ChatMessage;
+import de.luh.vss.chat.common.MessageType;
+
+/**
+ * A persistent TCP connection to another server node, used in both directions. It carries
+ * directory announcements (a user came online or went offline here), forwarded chat messages
+ * and broadcasts; see {@link SessionDirectory}.
+ *
+ * Every record is a kind byte followed by the user ID or the chat message in the stream format.
+ * Records are queued and written by a dedicated thread that takes everything queued at once and
+ * flushes it with a single write, so a burst of forwards shares one system call and packet.
+ * Announcements are never dropped; forwarded chats and broadcasts are limited to
+ * {@code chatLimit} waiting records and refused beyond that.
+ */
+class NodeLink {
+    private static final Logger logger = Logger.getLogger(NodeLink.class.getName());
+
+    private static final byte ONLINE = 1;
+    private static final byte OFFLINE = 2;
+    private static final byte CHAT = 3;
+    private static final byte BROADCAST = 4;
+    private static final int MAX_BATCH = 512;
+    private static final Record CLOSE = new Record((byte) 0, 0, null);
+
+    private final Socket socket;
+    private final SessionDirectory directory;
+    private final int chatLimit;
+    private final LinkedBlockingQueue<Record> queue = new LinkedBlockingQueue<>();
+    private final AtomicInteger pendingChats = new AtomicInteger();
+    private final CountDownLatch closed = new CountDownLatch(1);
+    private volatile boolean open = true;
+
+    /**
+     * @param socket    the connected socket
+     * @param directory receives the records read from the peer
+     * @param chatLimit maximum number of forwarded chats waiting to be written
+     */
+    NodeLink(Socket socket, SessionDirectory directory, int chatLimit) {
+        this.socket = socket;
+        this.directory = directory;
+        this.chatLimit = chatLimit;
+    }
+
+    /**
+     * Starts the reading and the writing thread.
+     */
+    void start() throws IOException {
+        socket.setTcpNoDelay(true);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        Thread reader = new Thread(() -> read(in), "node-link-reader " + socket.getRemoteSocketAddress());
+        Thread writer = new Thread(() -> write(out), "node-link-writer " + socket.getRemoteSocketAddress());
+        reader.setDaemon(true);
+        writer.setDaemon(true);
+        reader.start();
+        writer.start();
+    }
+
+    /**
+     * Tells the peer that a user came online or went offline on this node.
+     */
+    void announce(int uid, boolean online) {
+        if (open) {
+            queue.add(new Record(online ? ONLINE : OFFLINE, uid, null));
+        }
+    }
+
+    /**
+     * Queues a chat message for the peer, which delivers it to its local recipient.
+     *
+     * @return false if the link is closed or too many forwards are waiting
+     */
+    boolean forward(ChatMessage msg) {
+        return enqueue(CHAT, msg);
+    }
+
+    /**
+     * Queues a broadcast for the peer, which fans it out to its local users only.
+     *
+     * @return false if the link is closed or too many forwards are waiting
+     */
+    boolean broadcast(ChatMessage msg) {
+        return enqueue(BROADCAST, msg);
+    }
+
+    private boolean enqueue(byte kind, ChatMessage msg) {
+        if (!open) {
+            return false;
+        }
+        if (pendingChats.incrementAndGet() > chatLimit) {
+            pendingChats.decrementAndGet();
+            return false;
+        }
+        queue.add(new Record(kind, msg.getRecipient().id(), msg));
+        return true;
+    }
+
+    private void read(DataInputStream in) {
+        try {
+            while (open) {
+                byte kind = in.readByte();
+                switch (kind) {
+                case ONLINE:
+                    directory.learn(in.readInt(), this);
+                    break;
+                case OFFLINE:
+                    directory.forget(in.readInt(), this);
+                    break;
+                case CHAT:
+                    directory.receive(readChat(in));
+                    break;
+                case BROADCAST:
+                    directory.receiveBroadcast(readChat(in));
+                    break;
+                default:
+                    throw new IOException("Unknown record " + kind);
+                }
+            }
+        } catch (EOFException e) {
+            // Peer closed the link
+        } catch (IOException | IllegalStateException e) {
+            if (open) {
+                logger.warning("Node link " + socket.getRemoteSocketAddress() + " failed: " + e.getMessage());
+            }
+        } finally {
+            close();
+        }
+    }
+
+    private static ChatMessage readChat(DataInputStream in) throws IOException {
+        Message msg = MessageType.fromInt(in.readInt(), in);
+        if (msg.getMessageType() != MessageType.CHAT_MESSAGE) {
+            throw new IOException("Unexpected " + msg.getMessageType());
+        }
+        return (ChatMessage) msg;
+    }
+
+    private void write(DataOutputStream out) {
+        List<Record> batch = new ArrayList<>(MAX_BATCH);
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+                for (Record record : batch) {
+                    if (record == CLOSE) {
+                        return;
+                    }
+                    out.writeByte(record.kind());
+                    if (record.msg() != null) {
+                        pendingChats.decrementAndGet();
+                        record.msg().toStream(out);
+                    } else {
+                        out.writeInt(record.uid());
+                    }
+                }
+                out.flush();
+                directory.recordBatch(batch.size());
+                batch.clear();
+            }
+        } catch (IOException e) {
+            if (open) {
+                logger.warning("Node link " + socket.getRemoteSocketAddress() + " failed: " + e.getMessage());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Closes the connection; the peer's directory entries learned over it are dropped.
+     */
+    void close() {
+        if (!open) {
+            return;
+        }
+        synchronized (this) {
+            if (!open) {
+                return;
+            }
+            open = false;
+        }
+        queue.add(CLOSE);
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+        directory.linkClosed(this);
+        closed.countDown();
+    }
+
+    /**
+     * Blocks until the link is closed.
+     */
+    void awaitClose() throws InterruptedException {
+        closed.await();
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(socket.getRemoteSocketAddress());
+    }
+
+    private record Record(byte kind, int uid, ChatMessage msg) {
+    }
+}
@@ -0,0 +1,245 @@
+package de.luh.vss.chat.server;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * The stored result per (uid, assignment), so {@link ResultWriter} can skip writes that would
+ * not change the row. Entries are kept in LRU order up to {@code capacity} and expire after
+ * {@code ttlMillis}.
+ *
+ * Entries are only ever filled from the database: a trigger on {@code assignment_results}
+ * (see init.sql) sends a notification for every stored row, and a background thread listening
+ * on a dedicated connection applies them. Notifications arrive in commit order, so a value
+ * written by another node replaces or invalidates the entry no matter which network that node
+ * is in. While the listener is not connected nothing is skipped, and the cache is cleared on
+ * every reconnect because notifications may have been missed.
+ *
+ * A key this node is writing is not trusted until the notification of that write arrived (or
+ * {@link #SETTLE_TIMEOUT} passed), since the entry still holds the value from before.
+ */
+class ResultCache {
+    private static final Logger logger = Logger.getLogger(ResultCache.class.getName());
+    static final String CHANNEL = "assignment_results";
+    private static final long SETTLE_TIMEOUT = 5000;
+    private static final long RETRY_DELAY = 5000;
+    private static final int POLL_TIMEOUT = 1000;
+    private static final long STATS_INTERVAL = 60000;
+
+    private final int capacity;
+    private final long ttlMillis;
+    private final Map<Long, Entry> entries;
+    private final Map<Long, Long> settling = new HashMap<>(); // key -> deadline
+    private volatile boolean listening = false;
+
+    // Guarded by this
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long expirations = 0;
+    private long invalidations = 0;
+
+    /**
+     * @param capacity  maximum number of cached results
+     * @param ttlMillis time after which a cached result is no longer trusted
+     */
+    ResultCache(int capacity, long ttlMillis) {
+        this.capacity = capacity;
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+                if (size() <= ResultCache.this.capacity) {
+                    return false;
+                }
+                evictions++;
+                return true;
+            }
+        };
+    }
+
+    static long key(int uid, int assignment) {
+        return (long) uid << 32 | (assignment & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @return true if the stored result is known to be {@code passed}, so writing it again
+     *         would change nothing
+     */
+    synchronized boolean isStored(long key, boolean passed) {
+        if (!listening) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        Long settleDeadline = settling.get(key);
+        if (settleDeadline != null) {
+            if (now < settleDeadline) {
+                misses++;
+                return false;
+            }
+            settling.remove(key);
+        }
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return false;
+        }
+        if (now - entry.storedAt > ttlMillis) {
+            entries.remove(key);
+            expirations++;
+            misses++;
+            return false;
+        }
+        if (entry.passed != passed) {
+            misses++;
+            return false;
+        }
+        hits++;
+        return true;
+    }
+
+    /**
+     * Marks a key as being written by this node.
+     */
+    synchronized void writing(long key) {
+        long now = System.currentTimeMillis();
+        if (settling.size() >= capacity) {
+            // Notifications are not arriving (e.g. no trigger), drop the marks that ran out
+            settling.values().removeIf(deadline -> deadline <= now);
+        }
+        settling.put(key, now + SETTLE_TIMEOUT);
+    }
+
+    /**
+     * Applies a stored row reported by the database.
+     *
+     * @param passed the stored value, or null if the row was deleted
+     */
+    private synchronized void stored(long key, Boolean passed) {
+        settling.remove(key);
+        if (passed == null) {
+            if (entries.remove(key) != null) {
+                invalidations++;
+            }
+            return;
+        }
+        Entry previous = entries.put(key, new Entry(passed, System.currentTimeMillis()));
+        if (previous != null && previous.passed != passed) {
+            invalidations++;
+        }
+    }
+
+    private synchronized void reset() {
+        entries.clear();
+    }
+
+    /**
+     * Starts the background thread that keeps the cache in sync with the database.
+     *
+     * @param connectionPool provides the dedicated listening connection
+     */
+    void listen(ConnectionPool connectionPool) {
+        Thread listener = new Thread(() -> run(connectionPool), "result-cache");
+        listener.setDaemon(true);
+        listener.start();
+    }
+
+    private void run(ConnectionPool connectionPool) {
+        long nextStats = System.currentTimeMillis() + STATS_INTERVAL;
+        while (true) {
+            try (Connection conn = connectionPool.openUnpooled()) {
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.execute("LISTEN " + CHANNEL);
+                }
+                PGConnection pg = conn.unwrap(PGConnection.class);
+                reset();
+                listening = true;
+                while (true) {
+                    PGNotification[] notifications = pg.getNotifications(POLL_TIMEOUT);
+                    if (notifications != null) {
+                        for (PGNotification notification : notifications) {
+                            apply(notification.getParameter());
+                        }
+                    }
+                    if (System.currentTimeMillis() >= nextStats) {
+                        logStats();
+                        nextStats = System.currentTimeMillis() + STATS_INTERVAL;
+                    }
+                }
+            } catch (SQLException e) {
+                listening = false;
+                logger.severe("Result cache disabled until reconnect: " + e.getMessage());
+            }
+            try {
+                Thread.sleep(RETRY_DELAY);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Parses a notification payload "uid,assignment,passed"; passed is empty for deleted rows.
+     */
+    private void apply(String payload) {
+        String[] parts = payload.split(",", -1);
+        if (parts.length != 3) {
+            logger.warning("Unexpected result notification: " + payload);
+            return;
+        }
+        try {
+            long key = key(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+            stored(key, parts[2].isEmpty() ? null : Boolean.valueOf(parts[2]));
+        } catch (NumberFormatException e) {
+            logger.warning("Unexpected result notification: " + payload);
+        }
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized long hits() {
+        return hits;
+    }
+
+    synchronized long misses() {
+        return misses;
+    }
+
+    synchronized long evictions() {
+        return evictions;
+    }
+
+    synchronized long expirations() {
+        return expirations;
+    }
+
+    synchronized long invalidations() {
+        return invalidations;
+    }
+
+    private void logStats() {
+        if (logger.isLoggable(Level.INFO)) {
+            logger.info(toString());
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("Result cache (size %d, hits %d, misses %d, evictions %d, expirations %d, invalidations %d)",
+                entries.size(), hits, misses, evictions, expirations, invalidations);
+    }
+
+    private record Entry(boolean passed, long storedAt) {
+    }
+}
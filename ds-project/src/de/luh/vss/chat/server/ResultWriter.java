@@ -0,0 +1,216 @@
+package de.luh.vss.chat.server;
+
+import java.sql.BatchUpdateException;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.luh.vss.chat.common.LatencyHistogram;
+
+/**
+ * Write-behind pipeline for assignment results. Results are queued, repeated writes for the same
+ * (uid, assignment) are coalesced to the latest value, and a background thread flushes them as a
+ * JDBC batch once {@code batchSize} results are pending or {@code flushIntervalMillis} passed.
+ * Every submit returns a future that completes when its result is in the database.
+ * With a {@link ResultCache}, results that are already stored are not written again.
+ */
+class ResultWriter {
+    private static final Logger logger = Logger.getLogger(ResultWriter.class.getName());
+    private static final String UPSERT_SQL = "INSERT INTO assignment_results (uid, assignment, passed) VALUES (?, ?, ?) " +
+                        "ON CONFLICT (uid, assignment) DO UPDATE SET passed = EXCLUDED.passed";
+
+    private final ConnectionPool connectionPool;
+    private final int batchSize;
+    private final long flushIntervalMillis;
+    private final ResultCache cache;
+
+    private final Object lock = new Object();
+    private Map<Long, Pending> pending = new LinkedHashMap<>();
+    private Map<Long, Pending> flushing = Map.of();
+    private boolean running = true;
+    private final Thread flusher;
+    private final LatencyHistogram writeLatency = new LatencyHistogram();
+
+    /**
+     * @param connectionPool      pool used for the batch writes
+     * @param batchSize           pending results that trigger an immediate flush
+     * @param flushIntervalMillis maximum time a result waits before it is flushed
+     * @param cache               known stored results, or null to write every result
+     */
+    ResultWriter(ConnectionPool connectionPool, int batchSize, long flushIntervalMillis, ResultCache cache) {
+        this.connectionPool = connectionPool;
+        this.batchSize = batchSize;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.cache = cache;
+        this.flusher = new Thread(this::run, "result-writer");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Queues a result. If a result for the same uid and assignment is still pending, it is
+     * replaced and both callers share the same future. A result the cache knows to be stored
+     * already is not queued.
+     *
+     * @return a future that completes once the result is written
+     */
+    CompletableFuture<Void> submit(int uid, int assignment, boolean passed) {
+        long key = ResultCache.key(uid, assignment);
+        synchronized (lock) {
+            Pending p = pending.get(key);
+            if (p == null) {
+                if (cache != null && !flushing.containsKey(key) && cache.isStored(key, passed)) {
+                    return CompletableFuture.completedFuture(null);
+                }
+                p = new Pending(uid, assignment);
+                pending.put(key, p);
+            }
+            if (cache != null) {
+                cache.writing(key);
+            }
+            p.passed = passed;
+            if (pending.size() == 1 || pending.size() >= batchSize) {
+                // Start the flush timer or flush a full batch right away
+                lock.notifyAll();
+            }
+            return p.future;
+        }
+    }
+
+    /**
+     * @return number of results not yet written, including the batch currently being flushed
+     */
+    int backlog() {
+        synchronized (lock) {
+            return pending.size() + flushing.size();
+        }
+    }
+
+    /**
+     * @return duration of every batch write in microseconds, including retries of single rows
+     */
+    LatencyHistogram writeLatency() {
+        return writeLatency;
+    }
+
+    /**
+     * Flushes everything still pending and stops the background thread.
+     */
+    void close() {
+        synchronized (lock) {
+            running = false;
+            lock.notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        while (true) {
+            Map<Long, Pending> batch;
+            synchronized (lock) {
+                try {
+                    while (pending.isEmpty() && running) {
+                        lock.wait();
+                    }
+                    long deadline = System.currentTimeMillis() + flushIntervalMillis;
+                    long remaining;
+                    while (pending.size() < batchSize && running && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                        lock.wait(remaining);
+                    }
+                } catch (InterruptedException e) {
+                    running = false;
+                }
+                if (pending.isEmpty() && !running) {
+                    return;
+                }
+                batch = pending;
+                pending = new LinkedHashMap<>();
+                flushing = batch;
+            }
+            long start = System.nanoTime();
+            write(batch);
+            writeLatency.record((System.nanoTime() - start) / 1000);
+            synchronized (lock) {
+                if (cache != null) {
+                    // The cache may still hold the value from before until the notification of this write arrives
+                    for (Long key : batch.keySet()) {
+                        cache.writing(key);
+                    }
+                }
+                flushing = Map.of();
+            }
+        }
+    }
+
+    /**
+     * Writes a batch in one round trip. If a single row fails (e.g. an unknown uid), the rows
+     * are retried one by one so the others are not lost.
+     */
+    private void write(Map<Long, Pending> batch) {
+        try (ConnectionPool.PooledConnection conn = connectionPool.borrow()) {
+            PreparedStatement stmt = conn.prepare(UPSERT_SQL);
+            try {
+                for (Pending p : batch.values()) {
+                    bind(stmt, p);
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+                for (Pending p : batch.values()) {
+                    p.future.complete(null);
+                }
+                if (logger.isLoggable(Level.INFO)) {
+                    logger.info("Saved " + batch.size() + " results to database");
+                }
+            } catch (BatchUpdateException e) {
+                stmt.clearBatch();
+                for (Pending p : batch.values()) {
+                    try {
+                        bind(stmt, p);
+                        stmt.executeUpdate();
+                        p.future.complete(null);
+                    } catch (SQLException rowError) {
+                        conn.check(rowError);
+                        p.future.completeExceptionally(rowError);
+                    }
+                }
+            } catch (SQLException e) {
+                conn.check(e);
+                throw e;
+            }
+        } catch (SQLException e) {
+            logger.severe("Database Error: " + e.getMessage());
+            for (Pending p : batch.values()) {
+                p.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private static void bind(PreparedStatement stmt, Pending p) throws SQLException {
+        stmt.setInt(1, p.uid);
+        stmt.setInt(2, p.assignment);
+        stmt.setBoolean(3, p.passed);
+    }
+
+    /**
+     * The latest result for one (uid, assignment) key.
+     */
+    private static final class Pending {
+        private final int uid;
+        private final int assignment;
+        private boolean passed;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Pending(int uid, int assignment) {
+            this.uid = uid;
+            this.assignment = assignment;
+        }
+    }
+}
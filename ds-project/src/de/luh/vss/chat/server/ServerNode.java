@@ -1,18 +1,26 @@
 package de.luh.vss.chat.server;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
-import java.sql.SQLException;
+import java.net.SocketTimeoutException;
 import java.util.logging.Logger;
 
+import de.luh.vss.chat.common.FrameCompressor;
+import de.luh.vss.chat.common.Heartbeat;
+import de.luh.vss.chat.common.LatencyHistogram;
 import de.luh.vss.chat.common.Message;
 import de.luh.vss.chat.common.Message.*;
+import de.luh.vss.chat.common.MessageCodec;
+import de.luh.vss.chat.common.MessageCodec.Frame;
 import de.luh.vss.chat.common.MessageType;
+import de.luh.vss.chat.common.StreamDemux;
+import de.luh.vss.chat.common.Metrics;
+import de.luh.vss.chat.common.User.UserId;
 
 import java.util.logging.Level;
 import java.io.IOException;
@@ -21,7 +29,15 @@ import java.util.TimerTask;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
 
 public class ServerNode {
     private static final Logger logger = Logger.getLogger(ServerNode.class.getName());
@@ -34,11 +50,94 @@ public class ServerNode {
     private static int currentPort;
     private static String nodeName;
 
+    // Utilization reported to the load balancer with every heartbeat
+    private static final AtomicInteger activeConnections = new AtomicInteger();
+    private static final LatencyHistogram handlingLatency = new LatencyHistogram();
+    private static volatile boolean draining = false;
+
+    // Execution model: "virtual" threads or a bounded "platform" thread pool
+    private static final String EXECUTOR = System.getenv("SERVER_EXECUTOR")==null ? "virtual" : System.getenv("SERVER_EXECUTOR");
+    private static final int MAX_CONCURRENCY = System.getenv("SERVER_MAX_CONCURRENCY")==null ? 256 : Integer.parseInt(System.getenv("SERVER_MAX_CONCURRENCY"));
+    private static final int QUEUE_LIMIT = System.getenv("SERVER_QUEUE_LIMIT")==null ? 1024 : Integer.parseInt(System.getenv("SERVER_QUEUE_LIMIT"));
+    private static final ConnectionExecutor executor = new ConnectionExecutor(!"platform".equalsIgnoreCase(EXECUTOR), MAX_CONCURRENCY, QUEUE_LIMIT);
+    // Connections only wait for requests on their own virtual thread, the handlers run within the executor's limits
+    private static final ExecutorService connectionThreads = Executors.newVirtualThreadPerTaskExecutor();
+
+    // Connections are kept open until EOF or until they are idle for this long (must exceed the client lease renewal period)
+    private static final int IDLE_TIMEOUT = System.getenv("SERVER_IDLE_TIMEOUT")==null ? 300000 : Integer.parseInt(System.getenv("SERVER_IDLE_TIMEOUT"));
+    // Streams with unanswered requests allowed per connection, see StreamDemux
+    private static final int MAX_STREAMS = System.getenv("SERVER_MAX_STREAMS")==null ? 1024 : Integer.parseInt(System.getenv("SERVER_MAX_STREAMS"));
+
+    // Compression of large chat messages, used on connections whose peer offers it
+    private static final boolean COMPRESSION = !"off".equalsIgnoreCase(System.getenv("COMPRESSION"));
+    private static final int COMPRESSION_THRESHOLD = System.getenv("COMPRESSION_THRESHOLD")==null ? 1024 : Integer.parseInt(System.getenv("COMPRESSION_THRESHOLD"));
+    private static final int COMPRESSION_LEVEL = System.getenv("COMPRESSION_LEVEL")==null ? 1 : Integer.parseInt(System.getenv("COMPRESSION_LEVEL"));
+
     // Database credentials from environment variables
-    private static final String DB_URL = System.getenv("DB_URL")==null ? "jdbc:postgresql://localhost:5432/mydb" : System.getenv("DB_URL");
+    private static final String DB_URL = System.getenv("DB_URL")==null ? "jdbc:postgresql://localhost:5432/mydb?reWriteBatchedInserts=true" : System.getenv("DB_URL");
     private static final String DB_USER = System.getenv("DB_USER")==null ? "user" : System.getenv("DB_USER");
     private static final String DB_PASSWORD = System.getenv("DB_PASSWORD")==null ? "password" : System.getenv("DB_PASSWORD");
 
+    // Database connection pool
+    private static final int DB_POOL_MIN = System.getenv("DB_POOL_MIN")==null ? 2 : Integer.parseInt(System.getenv("DB_POOL_MIN"));
+    private static final int DB_POOL_MAX = System.getenv("DB_POOL_MAX")==null ? 16 : Integer.parseInt(System.getenv("DB_POOL_MAX"));
+    private static final long DB_POOL_WAIT = System.getenv("DB_POOL_WAIT")==null ? 5000 : Long.parseLong(System.getenv("DB_POOL_WAIT"));
+    private static final long DB_POOL_LEAK_THRESHOLD = System.getenv("DB_POOL_LEAK_THRESHOLD")==null ? 30000 : Long.parseLong(System.getenv("DB_POOL_LEAK_THRESHOLD"));
+    private static final ConnectionPool connectionPool = new ConnectionPool(DB_URL, DB_USER, DB_PASSWORD, DB_POOL_MIN, DB_POOL_MAX, DB_POOL_WAIT, DB_POOL_LEAK_THRESHOLD);
+
+    // Write-behind batching of results
+    private static final int DB_BATCH_SIZE = System.getenv("DB_BATCH_SIZE")==null ? 100 : Integer.parseInt(System.getenv("DB_BATCH_SIZE"));
+    private static final long DB_FLUSH_INTERVAL = System.getenv("DB_FLUSH_INTERVAL")==null ? 20 : Long.parseLong(System.getenv("DB_FLUSH_INTERVAL"));
+    // "before-flush" (default) answers without waiting for Postgres, "after-flush" once the result is stored
+    private static final boolean DB_ACK_AFTER_FLUSH = "after-flush".equalsIgnoreCase(System.getenv("DB_ACK_MODE"));
+    // Results known to be stored are not written again; RESULT_CACHE_SIZE=0 disables the cache
+    private static final int RESULT_CACHE_SIZE = System.getenv("RESULT_CACHE_SIZE")==null ? 10000 : Integer.parseInt(System.getenv("RESULT_CACHE_SIZE"));
+    private static final long RESULT_CACHE_TTL = System.getenv("RESULT_CACHE_TTL")==null ? 60000 : Long.parseLong(System.getenv("RESULT_CACHE_TTL"));
+    private static final ResultCache resultCache = RESULT_CACHE_SIZE > 0 ? new ResultCache(RESULT_CACHE_SIZE, RESULT_CACHE_TTL) : null;
+    private static final ResultWriter resultWriter = new ResultWriter(connectionPool, DB_BATCH_SIZE, DB_FLUSH_INTERVAL, resultCache);
+
+    // Online users: leases expire unless renewed within LEASE_TTL, users_online is synced every LEASE_TICK
+    private static final long LEASE_TTL = System.getenv("LEASE_TTL")==null ? 300000 : Long.parseLong(System.getenv("LEASE_TTL"));
+    private static final long LEASE_TICK = System.getenv("LEASE_TICK")==null ? 1000 : Long.parseLong(System.getenv("LEASE_TICK"));
+    private static final int LEASE_SHARDS = System.getenv("LEASE_SHARDS")==null ? 16 : Integer.parseInt(System.getenv("LEASE_SHARDS"));
+    private static final LeaseRegistry leaseRegistry = new LeaseRegistry(connectionPool, LEASE_TTL, LEASE_TICK, LEASE_SHARDS);
+
+    // Fire-and-forget chat messages over UDP, received on the TCP port number unless UDP_PORT is set
+    private static final boolean UDP_INGEST = !"off".equalsIgnoreCase(System.getenv("UDP_INGEST"));
+    private static final int UDP_PORT = System.getenv("UDP_PORT")==null ? -1 : Integer.parseInt(System.getenv("UDP_PORT"));
+    private static final int UDP_RECEIVE_BUFFER = System.getenv("UDP_RECEIVE_BUFFER")==null ? 4 << 20 : Integer.parseInt(System.getenv("UDP_RECEIVE_BUFFER"));
+    private static final int UDP_MAX_DATAGRAM = System.getenv("UDP_MAX_DATAGRAM")==null ? 65507 : Integer.parseInt(System.getenv("UDP_MAX_DATAGRAM"));
+    private static final int UDP_BATCH = System.getenv("UDP_BATCH")==null ? 256 : Integer.parseInt(System.getenv("UDP_BATCH"));
+    private static UdpIngest udpIngest;
+
+    // Messages to UserId.BROADCAST go to every online user of this node
+    private static final int BROADCAST_QUEUE_LIMIT = System.getenv("BROADCAST_QUEUE_LIMIT")==null ? 64 : Integer.parseInt(System.getenv("BROADCAST_QUEUE_LIMIT"));
+    private static final int BROADCAST_EVICT_FAILURES = System.getenv("BROADCAST_EVICT_FAILURES")==null ? 3 : Integer.parseInt(System.getenv("BROADCAST_EVICT_FAILURES"));
+    private static final long BROADCAST_EVICT_TIME = System.getenv("BROADCAST_EVICT_TIME")==null ? 30000 : Long.parseLong(System.getenv("BROADCAST_EVICT_TIME"));
+    private static BroadcastFanout broadcastFanout;
+
+    // Cross-node routing: links to the peers in NODE_PEERS (host:port of their LINK_PORT, comma separated)
+    private static final String NODE_PEERS = System.getenv("NODE_PEERS")==null ? "" : System.getenv("NODE_PEERS");
+    private static final int LINK_PORT = System.getenv("LINK_PORT")==null ? -1 : Integer.parseInt(System.getenv("LINK_PORT"));
+    private static final int LINK_QUEUE_LIMIT = System.getenv("LINK_QUEUE_LIMIT")==null ? 4096 : Integer.parseInt(System.getenv("LINK_QUEUE_LIMIT"));
+    private static SessionDirectory sessionDirectory;
+
+    // Metrics via JMX and as Prometheus text on http://METRICS_HOST:METRICS_PORT/metrics (TCP port + 2000 by default); METRICS=off disables both
+    private static final boolean METRICS = !"off".equalsIgnoreCase(System.getenv("METRICS"));
+    private static final String METRICS_HOST = System.getenv("METRICS_HOST")==null ? "127.0.0.1" : System.getenv("METRICS_HOST");
+    private static final int METRICS_PORT = System.getenv("METRICS_PORT")==null ? -1 : Integer.parseInt(System.getenv("METRICS_PORT"));
+    private static final Metrics metrics = new Metrics("servernode");
+    private static final LongAdder acceptedConnections = new LongAdder();
+    private static final LongAdder rejectedRequests = new LongAdder();
+    // Never reset, unlike handlingLatency which covers one heartbeat interval
+    private static final LatencyHistogram[] typeLatency = new LatencyHistogram[MessageType.values().length];
+    private static final LatencyHistogram heartbeatDelay = new LatencyHistogram();
+    static {
+        for (int i = 0; i < typeLatency.length; i++) {
+            typeLatency[i] = new LatencyHistogram();
+        }
+    }
+
     /**
      * Main method to start the server node.
      * 
@@ -63,15 +162,25 @@ public class ServerNode {
                 logger.info("Server läuft auf Port: " + currentPort);
             }
             startHeartbeat();
+            if (METRICS) {
+                startMetrics();
+            }
+            if (resultCache != null) {
+                resultCache.listen(connectionPool);
+            }
+            startBroadcast();
+            startSessionDirectory();
+            if (UDP_INGEST) {
+                startUdpIngest();
+            }
             while(running){
                 if(!running){
                     break;
                 }
                 try {
                     Socket lbSocket = serverSocket.accept();
-                	DataInputStream in = new DataInputStream(lbSocket.getInputStream());
-                	DataOutputStream out = new DataOutputStream(lbSocket.getOutputStream());
-                    new Thread(() -> handleMessage(in, out)).start();
+                    acceptedConnections.increment();
+                    connectionThreads.execute(() -> handleConnection(lbSocket));
                 } catch (java.io.IOException e) {
                     logger.severe("IOException: " + e.getMessage());
                 }
@@ -83,40 +192,373 @@ public class ServerNode {
 
     /**
      * Starts the heartbeat mechanism to send periodic heartbeats to the load balancer.
+     * Every heartbeat carries the current utilization of this node (see {@link Heartbeat}).
+     * On shutdown a final heartbeat with the drain flag is sent so the load balancer stops
+     * routing new requests here.
      */
     private void startHeartbeat() {
         Timer timer = new Timer();
         timer.scheduleAtFixedRate(new TimerTask() {
             @Override
             public void run() {
-                try (DatagramSocket socket = new DatagramSocket()) {
-                    String address = nodeName==null ?  DEFAULT_HOST: nodeName;
-                    String message = address + ":" + currentPort;
-                    byte[] buffer = message.getBytes();
-                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length, nodeName==null ? InetAddress.getByName(DEFAULT_HOST) : InetAddress.getByName("loadbalancer"), HEARTBEAT_SEND_PORT);
-                    socket.send(packet);
-                } catch (IOException e) {
-                    logger.severe("Fehler beim Senden des Heartbeats: " + e.getMessage());
-                }
+                heartbeatDelay.record((System.currentTimeMillis() - scheduledExecutionTime()) * 1000);
+                sendHeartbeat();
             }
         }, 0, HEARTBEAT_INTERVAL);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            draining = true;
+            sendHeartbeat();
+            if (udpIngest != null) {
+                udpIngest.close();
+            }
+            if (sessionDirectory != null) {
+                sessionDirectory.close();
+            }
+            if (broadcastFanout != null) {
+                broadcastFanout.close();
+            }
+            try {
+                // Give in-flight requests one interval to complete
+                Thread.sleep(HEARTBEAT_INTERVAL);
+            } catch (InterruptedException ignored) {
+            }
+            resultWriter.close();
+            leaseRegistry.close();
+        }));
+    }
+
+    /**
+     * Registers the metrics of this node and exposes them via JMX and HTTP (see {@link Metrics}).
+     */
+    private static void startMetrics() {
+        for (MessageType type : MessageType.values()) {
+            metrics.histogram("server_handling_latency_microseconds", "Time to handle a message by type",
+                    typeLatency[type.ordinal()], "type", type.name());
+        }
+        metrics.counter("server_accepted_connections_total", "Accepted connections", acceptedConnections::sum);
+        metrics.counter("server_rejected_requests_total", "Requests rejected because the node was saturated", rejectedRequests::sum);
+        metrics.gauge("server_active_connections", "Connections being handled", activeConnections::get);
+        metrics.gauge("server_handler_queue_depth", "Requests waiting for a handler", ServerNode::handlerQueueDepth);
+        metrics.gauge("server_users_online", "Users with a valid lease", leaseRegistry::size);
+        metrics.gauge("server_db_write_backlog", "Results not yet written to the database", resultWriter::backlog);
+        metrics.histogram("server_db_write_latency_microseconds", "Duration of a batch write", resultWriter.writeLatency(), "table", "assignment_results");
+        metrics.histogram("server_db_write_latency_microseconds", "Duration of a batch write", leaseRegistry.syncLatency(), "table", "users_online");
+        metrics.histogram("server_heartbeat_delay_microseconds", "Delay of heartbeat sends behind their schedule", heartbeatDelay);
+        if (resultCache != null) {
+            metrics.gauge("server_result_cache_size", "Cached stored results", resultCache::size);
+            metrics.counter("server_result_cache_hits_total", "Writes skipped because the stored result was cached", resultCache::hits);
+            metrics.counter("server_result_cache_misses_total", "Writes not skipped by the result cache", resultCache::misses);
+            metrics.counter("server_result_cache_evictions_total", "Cached results dropped for capacity", resultCache::evictions);
+            metrics.counter("server_result_cache_expirations_total", "Cached results dropped after the TTL", resultCache::expirations);
+            metrics.counter("server_result_cache_invalidations_total", "Cached results changed or removed by a notification", resultCache::invalidations);
+        }
+        int port = METRICS_PORT < 0 ? currentPort + 2000 : METRICS_PORT;
+        try {
+            metrics.registerMBean();
+            metrics.serve(METRICS_HOST, port);
+            if (logger.isLoggable(Level.INFO)) {
+                logger.info("Metrics on http://" + METRICS_HOST + ":" + port + "/metrics");
+            }
+        } catch (IOException | JMException e) {
+            logger.severe("Metrics disabled: " + e.getMessage());
+        }
     }
 
     /**
-     * Handles incoming messages from the load balancer.
+     * Records the handling time of a message, for the heartbeat and per message type.
+     *
+     * @param type  The type of the handled message.
+     * @param start Start of handling from {@link System#nanoTime()}.
+     */
+    private static void recordHandling(MessageType type, long start) {
+        long micros = (System.nanoTime() - start) / 1000;
+        handlingLatency.record(micros);
+        typeLatency[type.ordinal()].record(micros);
+    }
+
+    /**
+     * Starts the sender thread delivering broadcasts (see {@link BroadcastFanout}).
+     */
+    private static void startBroadcast() {
+        try {
+            broadcastFanout = new BroadcastFanout(leaseRegistry, BROADCAST_QUEUE_LIMIT, BROADCAST_EVICT_FAILURES, BROADCAST_EVICT_TIME);
+        } catch (IOException e) {
+            logger.severe("Broadcast disabled: " + e.getMessage());
+            return;
+        }
+        Thread sender = new Thread(broadcastFanout, "broadcast");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Starts the session directory (see {@link SessionDirectory}): accepts links from other
+     * nodes on LINK_PORT (the TCP port + 1000 by default) and connects to every node in NODE_PEERS.
+     */
+    private static void startSessionDirectory() {
+        if (broadcastFanout == null) {
+            return;
+        }
+        sessionDirectory = new SessionDirectory(leaseRegistry, broadcastFanout, LINK_QUEUE_LIMIT);
+        int port = LINK_PORT < 0 ? currentPort + 1000 : LINK_PORT;
+        try {
+            sessionDirectory.listen(port);
+        } catch (IOException e) {
+            logger.severe("Node links disabled: " + e.getMessage());
+        }
+        for (String peer : NODE_PEERS.split(",")) {
+            peer = peer.trim();
+            if (peer.isEmpty()) {
+                continue;
+            }
+            int colon = peer.lastIndexOf(':');
+            sessionDirectory.connect(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1)));
+        }
+    }
+
+    /**
+     * Starts receiving chat messages over UDP (see {@link UdpIngest}). They are handled by the
+     * same executor and logic as messages arriving over TCP; responses are discarded.
+     */
+    private static void startUdpIngest() {
+        int port = UDP_PORT < 0 ? currentPort : UDP_PORT;
+        try {
+            udpIngest = new UdpIngest(port, UDP_RECEIVE_BUFFER, UDP_MAX_DATAGRAM, UDP_BATCH, ServerNode::submitDatagram);
+        } catch (IOException e) {
+            logger.severe("UDP ingestion disabled: " + e.getMessage());
+            return;
+        }
+        Thread receiver = new Thread(udpIngest, "udp-ingest");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    /**
+     * Hands a chat message received over UDP to the executor.
      * 
-     * @param in  DataInputStream to read messages from.
-     * @param out DataOutputStream to send responses to.
+     * @param msg The received message.
+     * @return false if the executor is saturated and the message was dropped.
      */
-    private static void handleMessage(DataInputStream in, DataOutputStream out){
+    private static boolean submitDatagram(ChatMessage msg) {
+        return executor.execute(() -> {
+            long start = System.nanoTime();
+            Message response = handleMessage(msg);
+            recordHandling(MessageType.CHAT_MESSAGE, start);
+            if (response != null && response.getMessageType() == MessageType.ERROR_RESPONSE) {
+                logger.warning("UDP message failed: " + response);
+            }
+        });
+    }
+
+    /**
+     * Sends a single heartbeat. The p99 handling latency covers the time since the previous heartbeat.
+     */
+    private static void sendHeartbeat() {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            String address = nodeName==null ?  DEFAULT_HOST: nodeName;
+            long p99 = handlingLatency.percentile(0.99);
+            handlingLatency.reset();
+            ByteBuffer buffer = ByteBuffer.allocate(Heartbeat.MAX_SIZE);
+            Heartbeat.encode(buffer, address, currentPort, activeConnections.get(), handlerQueueDepth(),
+                    (int) Math.min(Integer.MAX_VALUE, p99), resultWriter.backlog(), draining);
+            DatagramPacket packet = new DatagramPacket(buffer.array(), buffer.position(), nodeName==null ? InetAddress.getByName(DEFAULT_HOST) : InetAddress.getByName("loadbalancer"), HEARTBEAT_SEND_PORT);
+            socket.send(packet);
+        } catch (IOException e) {
+            logger.severe("Fehler beim Senden des Heartbeats: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Number of accepted connections waiting for a handler.
+     */
+    private static int handlerQueueDepth() {
+        return executor.queueDepth();
+    }
+
+    /**
+     * Handles a request of a connection within the concurrency and queue limits of the executor.
+     * 
+     * @param receivedMsg The received message.
+     * @return The response, or an error if the node is saturated.
+     */
+    private static Message handleRequest(Message receivedMsg) {
+        Message[] response = new Message[1];
+        if (!executor.run(() -> response[0] = handleMessage(receivedMsg))) {
+            rejectedRequests.increment();
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine("Server overloaded, request rejected: " + receivedMsg);
+            }
+            return new ErrorResponse("Server overloaded");
+        }
+        return response[0];
+    }
+
+    /**
+     * Handles a connection from the load balancer. Messages are processed one after another
+     * until the peer closes the connection or it stays idle for {@link #IDLE_TIMEOUT}.
+     * Requests may be pipelined: responses are written in request order and only flushed
+     * once no further request is buffered, so a burst of requests is answered with one flush.
+     * The connection holds an executor slot only while one of its requests is handled, so idle
+     * connections, e.g. those the load balancer keeps warm, never block new work.
+     * Requests arriving as {@link MessageCodec} frames are answered with frames that carry the
+     * request's correlation id, if it had one. Frames on a stream are handed to a {@link StreamDemux}
+     * that answers each stream on its own executor task, so many user sessions can share the
+     * connection without waiting for each other.
+     * 
+     * @param socket The accepted connection.
+     */
+    private static void handleConnection(Socket socket) {
+        activeConnections.incrementAndGet();
+        StreamDemux streams = null;
+        FrameCompressor compressor = null;
+        try (socket) {
+            socket.setSoTimeout(IDLE_TIMEOUT);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            ByteBuffer frameBuffer = null;
+            while (running) {
+                Message receivedMsg;
+                boolean framed;
+                int correlationId = MessageCodec.NO_CORRELATION;
+                try {
+                    // Frames (see MessageCodec) and the stream format may be mixed, the first word tells them apart
+                    int word = in.readInt();
+                    framed = MessageCodec.isFrameHeader(word);
+                    if (framed) {
+                        Frame frame = MessageCodec.readFrame(in, word, frameBuffer);
+                        frameBuffer = frame.body();
+                        if (frame.streamId() != MessageCodec.NO_STREAM) {
+                            if (streams == null) {
+                                streams = new StreamDemux(executor::execute, ServerNode::handleStreamMessage, out, MAX_STREAMS);
+                            }
+                            streams.dispatch(frame);
+                            continue;
+                        }
+                        correlationId = frame.correlationId();
+                        receivedMsg = frame.message(compressor);
+                    } else {
+                        receivedMsg = MessageType.fromInt(word, in);
+                    }
+                } catch (EOFException | SocketTimeoutException e) {
+                    break;
+                } catch (IllegalStateException e) {
+                    // The rest of the stream cannot be framed any more
+                    logger.severe("handleConnection: " + e.getMessage());
+                    synchronized (out) {
+                        new ErrorResponse("Unknown message type").toStream(out);
+                    }
+                    break;
+                }
+                long start = System.nanoTime();
+                Message response;
+                if (receivedMsg.getMessageType() == MessageType.CAPABILITIES) {
+                    Capabilities accepted = negotiate((Capabilities) receivedMsg);
+                    if (compressor == null && accepted.supports(Capabilities.DEFLATE)) {
+                        compressor = new FrameCompressor(COMPRESSION_THRESHOLD, COMPRESSION_LEVEL);
+                    }
+                    response = accepted;
+                } else {
+                    response = handleRequest(receivedMsg);
+                }
+                recordHandling(receivedMsg.getMessageType(), start);
+                // Stream responses may be written concurrently
+                synchronized (out) {
+                    if (response != null && framed) {
+                        frameBuffer = writeFrame(response, out, frameBuffer, compressor, correlationId);
+                    } else if (response != null) {
+                        response.toStream(out);
+                    }
+                }
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            logger.severe("handleConnection: " + e.getMessage());
+        } finally {
+            if (streams != null) {
+                streams.close();
+            }
+            // Frees the native zlib memory also when the connection failed
+            if (compressor != null) {
+                compressor.end();
+            }
+            activeConnections.decrementAndGet();
+        }
+    }
+
+    /**
+     * Handles a request that arrived on a stream. Stream responses are never compressed, so a
+     * capability offer on a stream is answered with no capabilities.
+     *
+     * @param receivedMsg The received message.
+     * @return The response to send back or null if the message is not answered.
+     */
+    private static Message handleStreamMessage(Message receivedMsg) {
+        long start = System.nanoTime();
+        Message response = receivedMsg.getMessageType() == MessageType.CAPABILITIES
+                ? new Capabilities(0) : handleMessage(receivedMsg);
+        recordHandling(receivedMsg.getMessageType(), start);
+        return response;
+    }
+
+    /**
+     * Answers a capability offer with the offered features this node supports. Compression only
+     * applies to frames, so it is only effective for peers that send frames.
+     *
+     * @param offer The capabilities offered by the peer.
+     * @return The accepted subset.
+     */
+    private static Capabilities negotiate(Capabilities offer) {
+        int supported = COMPRESSION ? Capabilities.DEFLATE : 0;
+        return new Capabilities(offer.getBits() & supported);
+    }
+
+    /**
+     * Writes a response as a frame, for peers that sent their request as a frame. The
+     * correlation id of the request is sent back so the peer can match the response.
+     *
+     * @param response      The response.
+     * @param out           The buffered connection output.
+     * @param buffer        The connection's frame buffer, may be null.
+     * @param compressor    The connection's compression state, null if not negotiated.
+     * @param correlationId The correlation id of the request or {@link MessageCodec#NO_CORRELATION}.
+     * @return The buffer to keep for the connection, larger than before if the response needed it.
+     */
+    private static ByteBuffer writeFrame(Message response, DataOutputStream out, ByteBuffer buffer, FrameCompressor compressor,
+            int correlationId) throws IOException {
+        int size = MessageCodec.encodedSize(response) + MessageCodec.CORRELATION_SIZE;
+        if (buffer == null || buffer.capacity() < size) {
+            buffer = ByteBuffer.allocate(Math.max(size, 256));
+        }
+        buffer.clear();
+        MessageCodec.encode(response, buffer, compressor, correlationId);
+        out.write(buffer.array(), 0, buffer.position());
+        return buffer;
+    }
+
+    /**
+     * Handles a single message from the load balancer.
+     * 
+     * @param receivedMsg The received message.
+     * @return The response to send back or null if the message is not answered.
+     */
+    private static Message handleMessage(Message receivedMsg){
         try{
-            Message receivedMsg = Message.parse(in);
             if (logger.isLoggable(Level.INFO)) {
             	logger.info("Received Message: " + receivedMsg.toString());
             }
 
             if(receivedMsg.getMessageType() == MessageType.CHAT_MESSAGE) {
          	    ChatMessage msg = (ChatMessage)receivedMsg;
+                if (msg.getRecipient().equals(UserId.BROADCAST) && sessionDirectory != null) {
+                    // Local users and, through the node links, the users of every peer
+                    int recipients = sessionDirectory.broadcast(msg);
+                    if (logger.isLoggable(Level.FINE)) {
+                        logger.fine(String.format("Broadcast queued for %d users", recipients));
+                    }
+                }
                 // compare [TEST 1 USER ID: 7211]                
                 if(msg.getMessage().startsWith("TEST 1 USER ID: ")) {
                     //compare chat-message content  
@@ -127,67 +569,76 @@ public class ServerNode {
 
                     if(passed) {
                     	// Send passed response
-                    	new ChatMessage(msg.getRecipient(), "TEST 1 USER ID CORRECTNESS PASSED").toStream(out); 
+                    	return new ChatMessage(msg.getRecipient(), "TEST 1 USER ID CORRECTNESS PASSED"); 
                     }else {
                     	// Send failed response
-                    	new ChatMessage(msg.getRecipient(), "TEST 1 USER ID CORRECTNESS FAILED").toStream(out);
+                    	return new ChatMessage(msg.getRecipient(), "TEST 1 USER ID CORRECTNESS FAILED");
                     }
-                    return;
+                }
+                // Deliver to the recipient, on this node or the node holding its session
+                if (sessionDirectory != null && !msg.getRecipient().equals(UserId.BROADCAST)) {
+                    sessionDirectory.route(msg);
                 }
             	// Echo message that are not test messages
-            	new ChatMessage(msg.getRecipient(), "ACK: " + msg.getMessage()).toStream(out); 
+            	return new ChatMessage(msg.getRecipient(), "ACK: " + msg.getMessage()); 
             }
             else if(receivedMsg.getMessageType() == MessageType.ERROR_RESPONSE) {
-            	new ErrorResponse("Invalid Message Type : ERROR_RESPONSE").toStream(out);
+            	return new ErrorResponse("Invalid Message Type : ERROR_RESPONSE");
             }
             else if(receivedMsg.getMessageType() == MessageType.REGISTER_RESPONSE) {
             	RegisterResponse regRes = (RegisterResponse)receivedMsg;
                 if (logger.isLoggable(Level.INFO)) {
             	    logger.info("received REGISTER_RESPONSE: "+ regRes.toString());
                 }
-            	new ErrorResponse("Invalid Message Type : REGISTER_RESPONSE").toStream(out);
+            	return new ErrorResponse("Invalid Message Type : REGISTER_RESPONSE");
             }
             else if(receivedMsg.getMessageType() == MessageType.REGISTER_REQUEST) {
             	RegisterRequest regReq = (RegisterRequest)receivedMsg;
                 if (logger.isLoggable(Level.INFO)) {
                     logger.info(String.format("received REGISTER_REQUEST: %s", regReq.toString()));
                 }
-            	//todo save to db, return list of online users and add timer that removes user from online list after 3 minutes(if no new lease request is received)    
+                leaseRegistry.renew(regReq);
+                return new RegisterResponse();
             }
+            return null;
         } catch (Exception e) {
-            try {
-                logger.severe("handleClient: " + e.getMessage());
-                new ErrorResponse("Unknown message type").toStream(out);
-            } catch (IOException ignored) {
-            }
+            logger.severe("handleClient: " + e.getMessage());
+            return new ErrorResponse("Unknown message type");
         }
     }
 
     /**
-     * Saves assignment results to the database.
+     * Saves assignment results to the database through the write-behind {@link ResultWriter}.
+     * Depending on DB_ACK_MODE the caller waits for the batch containing the result or returns at once.
      * 
      * @param uid          The user ID.
      * @param assignmentNr The assignment number.
      * @param passed       Whether the assignment was passed or not.
      */
     private static void saveToDatabase(String uid,int assignmentNr, boolean passed) {
-        String insertSQL = "INSERT INTO assignment_results (uid, assignment, passed) VALUES (?, ?, ?) " +
-                        "ON CONFLICT (uid, assignment) DO UPDATE SET passed = EXCLUDED.passed";
-
-        try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD);
-            PreparedStatement stmt = conn.prepareStatement(insertSQL)) {
-
-            stmt.setInt(1, Integer.parseInt(uid));
-            stmt.setInt(2, assignmentNr);
-            stmt.setBoolean(3, passed);
-
-            stmt.executeUpdate();
-            
+        CompletableFuture<Void> written;
+        try {
+            written = resultWriter.submit(Integer.parseInt(uid), assignmentNr, passed);
+        } catch (NumberFormatException e) {
+            logger.severe("Database Error: " + e.getMessage());
+            return;
+        }
+        if (!DB_ACK_AFTER_FLUSH) {
+            written.exceptionally(e -> {
+                logger.severe("Database Error: " + e.getMessage());
+                return null;
+            });
+            return;
+        }
+        try {
+            written.get();
             if (logger.isLoggable(Level.INFO)) {
                 logger.info("Data saved to database: " + Arrays.toString(new Object[]{uid,assignmentNr,passed}));
             }
-        } catch (SQLException | NumberFormatException e) {
-            logger.severe("Database Error: " + e.getMessage());
+        } catch (ExecutionException e) {
+            logger.severe("Database Error: " + e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-    }   
+    }
 }
@@ -0,0 +1,294 @@
+package de.luh.vss.chat.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.luh.vss.chat.common.Message.ChatMessage;
+
+/**
+ * Delivers chat messages to their recipient's session, whichever node of the network holds it.
+ *
+ * Every node keeps a full replica of the directory mapping user IDs to the node that owns their
+ * lease. Nodes dial all configured peers and keep one {@link NodeLink} per peer open; over that
+ * link they announce every user that comes online or goes offline in their {@link LeaseRegistry},
+ * starting with a snapshot of all current users whenever the link is (re)established. A node
+ * records the link on which it learned a user, so forwarding needs no further lookup, and drops
+ * all entries of a link when it closes.
+ *
+ * A chat is delivered over UDP if the recipient has a lease here and otherwise forwarded once to
+ * the owning node, which only ever delivers locally. A broadcast is fanned out to the local users
+ * and forwarded once to every peer, which fans it out to its own users without forwarding it
+ * again. The message path never touches the database.
+ */
+class SessionDirectory {
+    private static final Logger logger = Logger.getLogger(SessionDirectory.class.getName());
+    private static final long RECONNECT_DELAY = 2000;
+    private static final long STATS_INTERVAL = 10000;
+
+    private final LeaseRegistry leases;
+    private final BroadcastFanout outbound;
+    private final int chatLimit;
+    private final Map<Integer, NodeLink> owners = new ConcurrentHashMap<>();
+    private final List<NodeLink> outgoing = new CopyOnWriteArrayList<>();
+    private volatile boolean running = true;
+    private ServerSocket listener;
+
+    private final LongAdder local = new LongAdder();
+    private final LongAdder forwarded = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder unknown = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder batchedRecords = new LongAdder();
+    private long lastStatsTotal = 0;
+
+    private final ScheduledExecutorService stats = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "session-directory");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * @param leases    the users with a session on this node
+     * @param outbound  delivers messages to local users
+     * @param chatLimit maximum number of forwarded chats waiting on one link
+     */
+    SessionDirectory(LeaseRegistry leases, BroadcastFanout outbound, int chatLimit) {
+        this.leases = leases;
+        this.outbound = outbound;
+        this.chatLimit = chatLimit;
+        leases.setListener(this::announce);
+        stats.scheduleAtFixedRate(this::logStats, STATS_INTERVAL, STATS_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Accepts links from other nodes on the given port.
+     */
+    void listen(int port) throws IOException {
+        listener = new ServerSocket(port);
+        Thread acceptor = new Thread(() -> {
+            while (running) {
+                try {
+                    open(listener.accept());
+                } catch (IOException e) {
+                    if (running) {
+                        logger.severe("Node link accept: " + e.getMessage());
+                    }
+                }
+            }
+        }, "node-link-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        if (logger.isLoggable(Level.INFO)) {
+            logger.info("Accepting node links on port " + port);
+        }
+    }
+
+    /**
+     * Keeps a link to the peer open, reconnecting after failures.
+     *
+     * @param host the peer's host
+     * @param port the peer's link port
+     */
+    void connect(String host, int port) {
+        Thread dialer = new Thread(() -> {
+            while (running) {
+                try {
+                    NodeLink link = open(new Socket(host, port));
+                    outgoing.add(link);
+                    // Queued under the shard locks, so no change of a user can overtake its snapshot entry
+                    leases.forEachOnline((uid, endpoint) -> link.announce(uid, true));
+                    if (logger.isLoggable(Level.INFO)) {
+                        logger.info(String.format("Node link to %s:%d established", host, port));
+                    }
+                    link.awaitClose();
+                    outgoing.remove(link);
+                } catch (IOException e) {
+                    if (logger.isLoggable(Level.FINE)) {
+                        logger.fine(String.format("Node link to %s:%d: %s", host, port, e.getMessage()));
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    Thread.sleep(RECONNECT_DELAY);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "node-link-dialer " + host + ":" + port);
+        dialer.setDaemon(true);
+        dialer.start();
+    }
+
+    private NodeLink open(Socket socket) throws IOException {
+        NodeLink link = new NodeLink(socket, this, chatLimit);
+        try {
+            link.start();
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return link;
+    }
+
+    /**
+     * Delivers a chat to its recipient: over UDP if the recipient's session is on this node,
+     * otherwise through the link of the node that owns it.
+     *
+     * @param msg the message
+     * @return false if the recipient is unknown or the message was dropped
+     */
+    boolean route(ChatMessage msg) throws IOException {
+        int uid = msg.getRecipient().id();
+        InetSocketAddress endpoint = leases.endpoint(uid);
+        if (endpoint != null) {
+            return deliver(uid, endpoint, msg);
+        }
+        NodeLink owner = owners.get(uid);
+        if (owner == null) {
+            unknown.increment();
+            return false;
+        }
+        if (!owner.forward(msg)) {
+            dropped.increment();
+            return false;
+        }
+        forwarded.increment();
+        return true;
+    }
+
+    /**
+     * Delivers a broadcast to every online user of the network: queued for the users with a lease
+     * here and forwarded to every peer for theirs.
+     *
+     * @param msg the message addressed to {@code UserId.BROADCAST}
+     * @return the number of local users the message was queued for
+     */
+    int broadcast(ChatMessage msg) throws IOException {
+        for (NodeLink link : outgoing) {
+            if (link.broadcast(msg)) {
+                forwarded.increment();
+            } else {
+                dropped.increment();
+            }
+        }
+        return outbound.broadcast(msg);
+    }
+
+    /**
+     * Handles a broadcast forwarded by another node; it only reaches the users with a lease here.
+     */
+    void receiveBroadcast(ChatMessage msg) throws IOException {
+        received.increment();
+        outbound.broadcast(msg);
+    }
+
+    /**
+     * Handles a chat forwarded by another node. It is only delivered locally, never forwarded
+     * again, so a stale directory entry costs at most one hop.
+     */
+    void receive(ChatMessage msg) throws IOException {
+        received.increment();
+        int uid = msg.getRecipient().id();
+        InetSocketAddress endpoint = leases.endpoint(uid);
+        if (endpoint == null) {
+            unknown.increment();
+            return;
+        }
+        deliver(uid, endpoint, msg);
+    }
+
+    private boolean deliver(int uid, InetSocketAddress endpoint, ChatMessage msg) throws IOException {
+        if (!outbound.deliver(uid, endpoint, msg)) {
+            dropped.increment();
+            return false;
+        }
+        local.increment();
+        return true;
+    }
+
+    /**
+     * Forwards a change of the local lease registry to all peers.
+     */
+    private void announce(int uid, boolean online) {
+        for (NodeLink link : outgoing) {
+            link.announce(uid, online);
+        }
+    }
+
+    /**
+     * Records that the user's session is on the node at the other end of the link.
+     */
+    void learn(int uid, NodeLink link) {
+        owners.put(uid, link);
+    }
+
+    /**
+     * Removes the user's entry unless another node claimed the user meanwhile.
+     */
+    void forget(int uid, NodeLink link) {
+        owners.remove(uid, link);
+    }
+
+    /**
+     * Drops everything learned over a closed link.
+     */
+    void linkClosed(NodeLink link) {
+        outgoing.remove(link);
+        owners.values().removeIf(owner -> owner == link);
+        if (logger.isLoggable(Level.INFO)) {
+            logger.info("Node link " + link + " closed");
+        }
+    }
+
+    void recordBatch(int records) {
+        batches.increment();
+        batchedRecords.add(records);
+    }
+
+    private void logStats() {
+        long total = local.sum() + forwarded.sum() + received.sum() + unknown.sum();
+        if (total != lastStatsTotal && logger.isLoggable(Level.INFO)) {
+            logger.info(toString());
+        }
+        lastStatsTotal = total;
+    }
+
+    /**
+     * Closes the listener and all links.
+     */
+    void close() {
+        running = false;
+        stats.shutdown();
+        try {
+            if (listener != null) {
+                listener.close();
+            }
+        } catch (IOException ignored) {
+        }
+        for (NodeLink link : outgoing) {
+            link.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        long batchCount = batches.sum();
+        return String.format("Session directory (remote users %d, links %d, local %d, forwarded %d, received %d, unknown %d, dropped %d, records per batch %.1f)",
+                owners.size(), outgoing.size(), local.sum(), forwarded.sum(), received.sum(), unknown.sum(), dropped.sum(),
+                batchCount == 0 ? 0.0 : (double) batchedRecords.sum() / batchCount);
+    }
+}
@@ -0,0 +1,189 @@
+package de.luh.vss.chat.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.luh.vss.chat.common.Message;
+import de.luh.vss.chat.common.Message.ChatMessage;
+import de.luh.vss.chat.common.MessageCodec;
+import de.luh.vss.chat.common.MessageType;
+
+/**
+ * Receives fire-and-forget chat messages over UDP, bypassing the load balancer and the
+ * per-connection handlers. A datagram holds one chat message, either in the stream format
+ * written by {@link ChatMessage#serializeMessage()} or as an uncompressed {@link MessageCodec}
+ * frame. Responses are not sent back.
+ *
+ * A single thread waits on a selector and, per wakeup, drains up to {@code batchLimit}
+ * datagrams from the socket into one reused buffer before it waits again, so a burst costs one
+ * wakeup instead of one per datagram. Decoded messages are passed to a handler that may refuse
+ * them when the node is saturated. Datagrams the kernel drops because the receive buffer is
+ * full never reach this class; size the buffer for the expected bursts.
+ */
+class UdpIngest implements Runnable {
+    private static final Logger logger = Logger.getLogger(UdpIngest.class.getName());
+    private static final long STATS_INTERVAL = 10000;
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final ByteBuffer buffer;
+    private final int maxDatagram;
+    private final int batchLimit;
+    private final Predicate<ChatMessage> handler;
+
+    // Only written by the receiving thread
+    private long received = 0;
+    private long malformed = 0;
+    private long truncated = 0;
+    private long overflow = 0;
+    private long lastStatsReceived = 0;
+
+    /**
+     * @param port          UDP port to listen on
+     * @param receiveBuffer requested socket receive buffer in bytes, the kernel may cap it
+     * @param maxDatagram   largest accepted datagram, larger ones are dropped
+     * @param batchLimit    maximum number of datagrams drained per wakeup
+     * @param handler       processes a message, returns false if it had no capacity left
+     */
+    UdpIngest(int port, int receiveBuffer, int maxDatagram, int batchLimit, Predicate<ChatMessage> handler) throws IOException {
+        this.maxDatagram = maxDatagram;
+        this.batchLimit = batchLimit;
+        this.handler = handler;
+        // One byte more than accepted, so oversized datagrams are recognized instead of silently cut
+        this.buffer = ByteBuffer.allocate(maxDatagram + 1);
+        this.channel = DatagramChannel.open();
+        this.selector = Selector.open();
+        try {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBuffer);
+            channel.bind(new InetSocketAddress(port));
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            close();
+            selector.close();
+            throw e;
+        }
+        if (logger.isLoggable(Level.INFO)) {
+            logger.info(String.format("UDP ingestion on port %d, receive buffer %d bytes", port,
+                    channel.getOption(StandardSocketOptions.SO_RCVBUF)));
+        }
+    }
+
+    @Override
+    public void run() {
+        long nextStats = System.currentTimeMillis() + STATS_INTERVAL;
+        try {
+            while (channel.isOpen()) {
+                selector.select(STATS_INTERVAL);
+                selector.selectedKeys().clear();
+                drain();
+                long now = System.currentTimeMillis();
+                if (now >= nextStats) {
+                    logStats();
+                    nextStats = now + STATS_INTERVAL;
+                }
+            }
+        } catch (IOException e) {
+            if (channel.isOpen()) {
+                logger.severe("UDP ingestion stopped: " + e.getMessage());
+            }
+        } finally {
+            close();
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Receives datagrams until the socket is empty or the batch limit is reached.
+     */
+    private void drain() throws IOException {
+        for (int i = 0; i < batchLimit; i++) {
+            buffer.clear();
+            if (channel.receive(buffer) == null) {
+                return;
+            }
+            received++;
+            buffer.flip();
+            if (buffer.remaining() > maxDatagram) {
+                truncated++;
+                continue;
+            }
+            ChatMessage msg;
+            try {
+                msg = decode(buffer);
+            } catch (IOException | IllegalStateException | BufferUnderflowException e) {
+                malformed++;
+                if (logger.isLoggable(Level.FINE)) {
+                    logger.fine("Malformed datagram: " + e.getMessage());
+                }
+                continue;
+            }
+            if (!handler.test(msg)) {
+                overflow++;
+            }
+        }
+    }
+
+    /**
+     * Decodes the chat message of a datagram.
+     *
+     * @param datagram the received bytes
+     * @throws IllegalStateException if the datagram holds anything but exactly one chat message
+     */
+    static ChatMessage decode(ByteBuffer datagram) throws IOException {
+        int word = datagram.getInt();
+        Message msg;
+        if (MessageCodec.isFrameHeader(word)) {
+            if (MessageCodec.frameLength(word) != datagram.remaining() || MessageCodec.frameFlags(word) != 0) {
+                throw new IllegalStateException("Frame does not fill the datagram or is compressed");
+            }
+            msg = MessageCodec.decode(datagram);
+        } else {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(datagram.array(),
+                    datagram.arrayOffset() + datagram.position(), datagram.remaining()));
+            msg = MessageType.fromInt(word, in);
+        }
+        if (msg.getMessageType() != MessageType.CHAT_MESSAGE) {
+            throw new IllegalStateException("Unexpected " + msg.getMessageType() + " over UDP");
+        }
+        return (ChatMessage) msg;
+    }
+
+    private void logStats() {
+        if (received != lastStatsReceived && logger.isLoggable(Level.INFO)) {
+            logger.info(toString());
+        }
+        lastStatsReceived = received;
+    }
+
+    /**
+     * Stops receiving; the receiving thread ends after its current batch.
+     */
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        selector.wakeup();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("UDP ingestion (received %d, malformed %d, truncated %d, overflow %d)",
+                received, malformed, truncated, overflow);
+    }
+}